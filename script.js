@@ -1,33 +1,148 @@
- 
-async function subscribe(id,vers) {
-  let response = await fetch("/subscribe/" + id +"?version=" + vers);
+// One WebSocket per page carries the changes to all channels.
+let socket = null;
+let socketOpen = false;
+// The channels shown on the page, with the state they show.
+let watching = {};
+
+// Connect to the server, to get badges for new events
+// in the channel list.
+function connect() {
+  if (socket) {
+    return;
+  }
+  if (!("WebSocket" in window)) {
+    fallback();
+    return;
+  }
+  let proto = location.protocol == "https:" ? "wss://" : "ws://";
+  socket = new WebSocket(proto + location.host + "/events");
+  let opened = false;
+  socket.onopen = () => {
+    opened = socketOpen = true;
+    for (let id in watching) {
+      sendSubscribe(id);
+    }
+  };
+  socket.onmessage = (event) => {
+    // The first line is the channel, then either
+    // "activity" or the rest as for subscribe()
+    let message = event.data;
+    let lineend = message.indexOf("\n");
+    let id = message.substr(0, lineend);
+    message = message.substr(lineend+1);
+    if (message.startsWith("activity ")) {
+      let badge = document.querySelector("#chan-" + id + " .badge");
+      let count = message.split(" ")[2];
+      if (badge && count > 0) badge.textContent = count;
+    } else if (id in watching) {
+      let update = parseUpdate(message);
+      watching[id] = {version: update.version, sequence: update.sequence};
+      applyUpdate(update);
+    }
+  };
+  socket.onclose = () => {
+    socket = null;
+    socketOpen = false;
+    if (opened) {
+      // Reconnect in one second
+      setTimeout(connect, 1000);
+    } else {
+      fallback();
+    }
+  };
+}
+
+// Follow a channel shown on the page.
+function watch(id,vers,seq) {
+  watching[id] = {version: vers, sequence: seq};
+  if (socketOpen) {
+    sendSubscribe(id);
+  } else {
+    connect();
+  }
+}
+
+function sendSubscribe(id) {
+  socket.send("subscribe " + id + " " + watching[id].version + " " + watching[id].sequence);
+}
+
+// Without WebSockets, long-poll the shown channels instead.
+function fallback() {
+  for (let id in watching) {
+    subscribe(id, watching[id].version, watching[id].sequence);
+  }
+}
+
+async function subscribe(id,vers,seq) {
+  let response = await fetch("/subscribe/" + id +"?version=" + vers + "&sequence=" + seq);
 
   if (response.status == 502) {
     // Status 502 is a connection timeout error,
     // may happen when the connection was pending for too long,
     // and the remote server or a proxy closed it
     // let's reconnect
-    await subscribe();
+    await subscribe(id,vers,seq);
+  } else if (response.status == 204) {
+    // Nothing happened before the server timed us out,
+    // ask again with the same state
+    await subscribe(id,vers,seq);
   } else if (response.status != 200) {
     // An error - let's show it
     alert(response.statusText);
     // Reconnect in one second
     await new Promise(resolve => setTimeout(resolve, 1000));
-    await subscribe();
+    await subscribe(id,vers,seq);
   } else {
-    // Get and show the message
-    let message = await response.text();
-    let lineend = message.indexOf("\n")
-    let newvers = message.substr(0, lineend);
-    let html = message.substr(lineend+1);
-    let chan = document.getElementById("channel");
-    let chanevents = document.getElementById("chanevents");
-    chan.replaceChild(htmlToElem(html),chanevents);
+    let update = parseUpdate(await response.text());
+    applyUpdate(update);
     // Call subscribe() again to get the next message
-    await subscribe(id,newvers);
+    await subscribe(id,update.version,update.sequence);
+  }
+}
+
+// The first line is the new version, the second
+// is "delta" or "full" and the new sequence number.
+function parseUpdate(message) {
+  let lineend = message.indexOf("\n");
+  let version = message.substr(0, lineend);
+  message = message.substr(lineend+1);
+  lineend = message.indexOf("\n");
+  let [kind, sequence] = message.substr(0, lineend).split(" ");
+  return {version: version, kind: kind, sequence: sequence, html: message.substr(lineend+1)};
+}
+
+function applyUpdate(update) {
+  let chanevents = document.getElementById("chanevents");
+  if (update.kind == "delta") {
+    // Only the changes, oldest first
+    applyDelta(chanevents, htmlToFragment(update.html));
+  } else {
+    let chan = document.getElementById("channel");
+    chan.replaceChild(htmlToElem(update.html),chanevents);
   }
 }
 
+function applyDelta(chanevents, fragment) {
+  for (let elem of Array.from(fragment.children)) {
+    if (elem.classList.contains("deleted")) {
+      // A deletion names the event to remove
+      let target = document.getElementById(elem.dataset.target);
+      if (target) target.remove();
+    } else if (elem.id && document.getElementById(elem.id)) {
+      // An edit replaces the event with the same id
+      document.getElementById(elem.id).replaceWith(elem);
+    } else {
+      chanevents.append(elem);
+    }
+  }
+}
+
+function htmlToFragment(html) {
+  let temp = document.createElement('template');
+  temp.innerHTML = html;
+  return temp.content;
+}
+
 function htmlToElem(html) {
   let temp = document.createElement('template');
   html = html.trim(); // Never return a space text node as a result
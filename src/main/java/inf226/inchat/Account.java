@@ -6,6 +6,7 @@ import com.lambdaworks.crypto.SCrypt;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
+import java.sql.SQLException;
 import java.util.Arrays;
 
 import inf226.storage.*;
@@ -18,14 +19,15 @@ public final class Account {
     /*
      * A channel consists of a User object of public account info,
      * and a list of channels which the user can post to.
+     * The channels are only loaded when they are resolved.
      */
     public final Stored<User> user;
-    public final List<Pair<String,Stored<Channel>>> channels;
+    public final List<Pair<String,Reference<Channel,SQLException>>> channels;
     public final Password password;
     public final byte[] salt;
 
     public Account(final Stored<User> user,
-                   final List<Pair<String,Stored<Channel>>> channels,
+                   final List<Pair<String,Reference<Channel,SQLException>>> channels,
                    final Password password, final byte[] salt) {
         this.user = user;
         this.channels = channels;
@@ -57,8 +59,8 @@ public final class Account {
      */
     public Account joinChannel(final String alias,
                                final Stored<Channel> channel) {
-        Pair<String,Stored<Channel>> entry
-            = new Pair<String,Stored<Channel>>(alias,channel);
+        Pair<String,Reference<Channel,SQLException>> entry
+            = new Pair<String,Reference<Channel,SQLException>>(alias,new Reference<Channel,SQLException>(channel));
         return new Account
                 (user,
                  List.cons(entry,
@@ -3,6 +3,11 @@ package inf226.inchat;
 
 import java.io.*;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 
 import inf226.storage.*;
@@ -16,43 +21,109 @@ import inf226.util.*;
 public final class AccountStorage
     implements Storage<Account,SQLException> {
     
-    final Connection connection;
+    final Database database;
     final Storage<User,SQLException> userStore;
     final Storage<Channel,SQLException> channelStore;
    
     /**
      * Create a new account storage.
      *
-     * @param  connection   The connection to the SQL database.
+     * @param  database     The SQL database.
      * @param  userStore    The storage for User data.
      * @param  channelStore The storage for channels.
      */
-    public AccountStorage(Connection connection,
+    public AccountStorage(Database database,
                           Storage<User,SQLException> userStore,
                           Storage<Channel,SQLException> channelStore) 
       throws SQLException {
-        this.connection = connection;
+        this.database = database;
         this.userStore = userStore;
         this.channelStore = channelStore;
         
-        connection.createStatement()
-                .executeUpdate("CREATE TABLE IF NOT EXISTS Account (id TEXT PRIMARY KEY, version TEXT, user TEXT, password VARBINARY(8000), salt VARBINARY(8000), FOREIGN KEY(user) REFERENCES User(id) ON DELETE CASCADE)");
-        connection.createStatement()
-                .executeUpdate("CREATE TABLE IF NOT EXISTS AccountChannel (account TEXT, channel TEXT, alias TEXT, ordinal INTEGER, PRIMARY KEY(account,channel), FOREIGN KEY(account) REFERENCES Account(id) ON DELETE CASCADE, FOREIGN KEY(channel) REFERENCES Channel(id) ON DELETE CASCADE)");
+        try (Database.Scope scope = database.write();
+             Statement statement = scope.connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS Account (id TEXT PRIMARY KEY, version TEXT, user TEXT, password VARBINARY(8000), salt VARBINARY(8000), FOREIGN KEY(user) REFERENCES User(id) ON DELETE CASCADE)");
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS AccountChannel (account TEXT, channel TEXT, alias TEXT, ordinal INTEGER, PRIMARY KEY(account,channel), FOREIGN KEY(account) REFERENCES Account(id) ON DELETE CASCADE, FOREIGN KEY(channel) REFERENCES Channel(id) ON DELETE CASCADE)");
+            scope.commit();
+        }
     }
     
     @Override
     public Stored<Account> save(Account account)
       throws SQLException {
-        final Stored<Account> stored = new Stored<Account>(account);
+        return saveAll(Collections.singletonList(account)).get(0);
+    }
+
+    /**
+     * Save several accounts in one transaction, with their rows
+     * written in batches.
+     */
+    @Override
+    public java.util.List<Stored<Account>> saveAll(Collection<Account> accounts)
+      throws SQLException {
+        final java.util.List<Stored<Account>> stored = new ArrayList<Stored<Account>>(accounts.size());
+        try (Database.Scope scope = database.write()) {
+            String sql = "INSERT INTO Account VALUES(?,?,?,?,?)";
+            PreparedStatement preparedStatement = scope.prepare(sql);
+            for (Account account : accounts) {
+                final Stored<Account> saved = new Stored<Account>(account);
+                preparedStatement.setObject(1,saved.identity);
+                preparedStatement.setObject(2, saved.version);
+                preparedStatement.setObject(3, account.user.identity);
+                preparedStatement.setBytes(4, serialize(account.password));
+                preparedStatement.setBytes(5,account.salt);
+                preparedStatement.addBatch();
+                stored.add(saved);
+            }
+            preparedStatement.executeBatch();
+
+            for (Stored<Account> saved : stored) {
+                addChannels(scope, saved.identity, saved.value.channels);
+            }
+            scope.commit();
+        }
+        return stored;
+    }
+
+    /**
+     * Write the list of channels of an account as one batch.
+     */
+    private static void addChannels(Database.Scope scope,
+                                    UUID account,
+                                    List<Pair<String,Reference<Channel,SQLException>>> channels)
+      throws SQLException {
+        final String msql = "INSERT INTO AccountChannel VALUES(?,?,?,?)";
+        final PreparedStatement mpreparedStatement = scope.prepare(msql);
+        final Maybe.Builder<SQLException> exception = Maybe.builder();
+        final Mutable<Integer> ordinal = new Mutable<Integer>(0);
+        channels.forEach(element -> {
+            String alias = element.first;
+            Reference<Channel,SQLException> channel = element.second;
+            try {
+                mpreparedStatement.setObject(1, account);
+                mpreparedStatement.setObject(2, channel.identity);
+                mpreparedStatement.setObject(3, alias);
+                mpreparedStatement.setString(4, ordinal.get().toString());
+                mpreparedStatement.addBatch();
+            }
+            catch (SQLException e) { exception.accept(e) ; }
+            ordinal.accept(ordinal.get() + 1);
+        });
 
-        //serialization of password object
+        Util.throwMaybe(exception.getMaybe());
+        mpreparedStatement.executeBatch();
+    }
+
+    /**
+     * Serialise a password object.
+     */
+    private static byte[] serialize(Password password) {
         ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
         ObjectOutputStream objStream;
         byte[] passAsBytes;
             try {
                 objStream = new ObjectOutputStream(byteStream);
-                objStream.writeObject(account.password);
+                objStream.writeObject(password);
                 objStream.flush();
                 passAsBytes = byteStream.toByteArray();
             }catch(IOException ioException){
@@ -66,38 +137,7 @@ public final class AccountStorage
 
                 }
             }
-
-        String sql = "INSERT INTO Account VALUES(?,?,?,?,?)";
-        PreparedStatement preparedStatement = connection.prepareStatement(sql);
-        preparedStatement.setObject(1,stored.identity);
-        preparedStatement.setObject(2, stored.version);
-        preparedStatement.setObject(3, account.user.identity);
-        preparedStatement.setBytes(4, passAsBytes);
-        preparedStatement.setBytes(5,account.salt);
-        preparedStatement.executeUpdate();
-
-        // Write the list of channels
-        final Maybe.Builder<SQLException> exception = Maybe.builder();
-        final Mutable<Integer> ordinal = new Mutable<Integer>(0);
-        account.channels.forEach(element -> {
-            String alias = element.first;
-            Stored<Channel> channel = element.second;
-
-            final String msql = "INSERT INTO AccountChannel VALUES(?,?,?,?)";
-            try {
-                PreparedStatement mpreparedStatement = connection.prepareStatement(msql);
-                mpreparedStatement.setObject(1, stored.identity);
-                mpreparedStatement.setObject(2, channel.identity);
-                mpreparedStatement.setObject(3, alias);
-                mpreparedStatement.setString(4, ordinal.get().toString());
-                mpreparedStatement.executeUpdate();
-            }
-            catch (SQLException e) { exception.accept(e) ; }
-            ordinal.accept(ordinal.get() + 1);
-        });
-
-        Util.throwMaybe(exception.getMaybe());
-        return stored;
+        return passAsBytes;
     }
     
     @Override
@@ -106,40 +146,29 @@ public final class AccountStorage
         throws UpdatedException,
             DeletedException,
             SQLException {
-    final Stored<Account> current = get(account.identity);
-    final Stored<Account> updated = current.newVersion(new_account);
-    if(current.version.equals(account.version)) {
-        String sql = "UPDATE Account SET" +
-            " (version,user) =('" 
-                            + updated.version  + "','"
-                            + new_account.user.identity
-                            + "') WHERE id='"+ updated.identity + "'";
-        connection.createStatement().executeUpdate(sql);
-        
+    try (Database.Scope scope = database.write()) {
+        final Stored<Account> updated = account.newVersion(new_account);
+        String sql = "UPDATE Account SET (version,user) = (?,?) WHERE id = ? AND version = ?";
+        final PreparedStatement preparedStatement = scope.prepare(sql);
+        preparedStatement.setString(1, updated.version.toString());
+        preparedStatement.setString(2, new_account.user.identity.toString());
+        preparedStatement.setString(3, account.identity.toString());
+        preparedStatement.setString(4, account.version.toString());
+        if(preparedStatement.executeUpdate() == 0) {
+            // Changed or deleted by someone else
+            throw new UpdatedException(get(account.identity));
+        }
         
         // Rewrite the list of channels
-        connection.createStatement().executeUpdate("DELETE FROM AccountChannel WHERE account='" + account.identity + "'");
+        final PreparedStatement deleteStatement
+            = scope.prepare("DELETE FROM AccountChannel WHERE account = ?");
+        deleteStatement.setString(1, account.identity.toString());
+        deleteStatement.executeUpdate();
         
-        final Maybe.Builder<SQLException> exception = Maybe.builder();
-        final Mutable<Integer> ordinal = new Mutable<Integer>(0);
-        new_account.channels.forEach(element -> {
-            String alias = element.first;
-            Stored<Channel> channel = element.second;
-            final String msql
-                = "INSERT INTO AccountChannel VALUES('" + account.identity + "','"
-                                                        + channel.identity + "','"
-                                                        + alias + "','"
-                                                        + ordinal.get().toString() + "')";
-            try { connection.createStatement().executeUpdate(msql); }
-            catch (SQLException e) { exception.accept(e) ; }
-            ordinal.accept(ordinal.get() + 1);
-        });
-
-        Util.throwMaybe(exception.getMaybe());
-    } else {
-        throw new UpdatedException(current);
+        addChannels(scope, account.identity, new_account.channels);
+        scope.commit();
+        return updated;
     }
-    return updated;
     }
    
     @Override
@@ -147,66 +176,113 @@ public final class AccountStorage
        throws UpdatedException,
               DeletedException,
               SQLException {
-        final Stored<Account> current = get(account.identity);
-        if(current.version.equals(account.version)) {
-        String sql =  "DELETE FROM Account WHERE id ='" + account.identity + "'";
-        connection.createStatement().executeUpdate(sql);
-        } else {
-        throw new UpdatedException(current);
+        try (Database.Scope scope = database.write()) {
+            final PreparedStatement statement = scope.prepare("DELETE FROM Account WHERE id = ? AND version = ?");
+            statement.setString(1, account.identity.toString());
+            statement.setString(2, account.version.toString());
+            if(statement.executeUpdate() == 0) {
+                throw new UpdatedException(get(account.identity));
+            }
+            scope.commit();
         }
     }
     @Override
     public Stored<Account> get(UUID id)
       throws DeletedException,
              SQLException {
+        try {
+            return getAll(Collections.singletonList(id)).get(0).get();
+        } catch (Maybe.NothingException e) {
+            throw new DeletedException();
+        }
+    }
 
-        final String accountsql = "SELECT version,user,password,salt FROM Account WHERE id = '" + id.toString() + "'";
-        final String channelsql = "SELECT channel,alias,ordinal FROM AccountChannel WHERE account = '" + id.toString() + "' ORDER BY ordinal DESC";
+    /**
+     * Get several accounts. Each chunk of accounts costs one query
+     * for the accounts, one for their channels, and a batch lookup
+     * of their users.
+     */
+    @Override
+    public java.util.List<Maybe<Stored<Account>>> getAll(Collection<UUID> ids)
+      throws SQLException {
 
-        final Statement accountStatement = connection.createStatement();
-        final Statement channelStatement = connection.createStatement();
+        final String accountsql = "SELECT id,version,user,password,salt FROM Account WHERE id IN (?)";
+        // The channels are only referred to, along with their current version.
+        final String channelsql = "SELECT account,channel,alias,ordinal,Channel.version AS version"
+                                + " FROM AccountChannel INNER JOIN Channel ON Channel.id = channel"
+                                + " WHERE account IN (?) ORDER BY ordinal DESC";
+        final Map<UUID,Stored<Account>> found = new HashMap<UUID,Stored<Account>>();
 
-        final ResultSet accountResult = accountStatement.executeQuery(accountsql);
-        final ResultSet channelResult = channelStatement.executeQuery(channelsql);
+        try (Database.Scope scope = database.read()) {
+            for (java.util.List<UUID> chunk : Database.chunks(ids)) {
+                // Get all the channels associated with these accounts
+                final Map<UUID,List.Builder<Pair<String,Reference<Channel,SQLException>>>> channels
+                    = new HashMap<UUID,List.Builder<Pair<String,Reference<Channel,SQLException>>>>();
+                try (ResultSet channelResult = scope.prepareIn(channelsql, chunk).executeQuery()) {
+                    while(channelResult.next()) {
+                        final UUID account =
+                            UUID.fromString(channelResult.getString("account"));
+                        final UUID channelId = 
+                            UUID.fromString(channelResult.getString("channel"));
+                        final UUID channelVersion =
+                            UUID.fromString(channelResult.getString("version"));
+                        final String alias = channelResult.getString("alias");
+                        channels.computeIfAbsent(account, a -> List.builder()).accept(
+                            new Pair<String,Reference<Channel,SQLException>>(
+                                alias,new Reference<Channel,SQLException>(channelId,channelVersion,channelStore)));
+                    }
+                }
 
-        if(accountResult.next()) {
-            final UUID version = UUID.fromString(accountResult.getString("version"));
-            final UUID userid =
-            UUID.fromString(accountResult.getString("user"));
-            final byte[] password =
-            accountResult.getBytes("password");
+                final ArrayList<UUID> accountIds = new ArrayList<UUID>();
+                final ArrayList<UUID> versions = new ArrayList<UUID>();
+                final ArrayList<UUID> userIds = new ArrayList<UUID>();
+                final ArrayList<Password> passwords = new ArrayList<Password>();
+                final ArrayList<byte[]> salts = new ArrayList<byte[]>();
+                try (ResultSet accountResult = scope.prepareIn(accountsql, chunk).executeQuery()) {
+                    while(accountResult.next()) {
+                        accountIds.add(UUID.fromString(accountResult.getString("id")));
+                        versions.add(UUID.fromString(accountResult.getString("version")));
+                        userIds.add(UUID.fromString(accountResult.getString("user")));
+                        passwords.add(deserialize(accountResult.getBytes("password")));
+                        salts.add(accountResult.getBytes("salt"));
+                    }
+                }
 
-            //deserialize password object
-            ByteArrayInputStream byteStream = new ByteArrayInputStream(password);
+                final java.util.List<Maybe<Stored<User>>> users = userStore.getAll(userIds);
+                for (int i = 0; i < accountIds.size(); ++i) {
+                    final UUID id = accountIds.get(i);
+                    final int row = i;
+                    users.get(i).forEach(user ->
+                        found.put(id, new Stored<Account>(
+                            new Account(user,
+                                        channels.getOrDefault(id, List.builder()).getList(),
+                                        passwords.get(row),
+                                        salts.get(row)),
+                            id,
+                            versions.get(row))));
+                }
+            }
+        }
+        return Storage.inOrder(ids, found);
+    }
 
-            ObjectInput objIn;
-            Object passAsObj;
-            try{
-                objIn = new ObjectInputStream(byteStream);
-                passAsObj = objIn.readObject();
+    /**
+     * Deserialise a password object.
+     */
+    private static Password deserialize(byte[] password) {
+        ByteArrayInputStream byteStream = new ByteArrayInputStream(password);
 
-            } catch (IOException | ClassNotFoundException ioException) {
-                ioException.printStackTrace();
-                passAsObj = null;
-            }
-            final byte[] salt =
-                    accountResult.getBytes("salt");
-            final Stored<User> user = userStore.get(userid);
-            // Get all the channels associated with this account
-            final List.Builder<Pair<String,Stored<Channel>>> channels = List.builder();
-            while(channelResult.next()) {
-                final UUID channelId = 
-                    UUID.fromString(channelResult.getString("channel"));
-                final String alias = channelResult.getString("alias");
-                channels.accept(
-                    new Pair<String,Stored<Channel>>(
-                        alias,channelStore.get(channelId)));
-            }
+        ObjectInput objIn;
+        Object passAsObj;
+        try{
+            objIn = new ObjectInputStream(byteStream);
+            passAsObj = objIn.readObject();
 
-            return (new Stored<Account>(new Account(user,channels.getList(),(Password)passAsObj, salt),id,version));
-        } else {
-            throw new DeletedException();
+        } catch (IOException | ClassNotFoundException ioException) {
+            ioException.printStackTrace();
+            passAsObj = null;
         }
+        return (Password)passAsObj;
     }
     
     /**
@@ -217,14 +293,17 @@ public final class AccountStorage
              SQLException {
 
         final String sql = "SELECT Account.id from Account INNER JOIN User ON user=User.id where User.name=?";
-        final PreparedStatement preparedStatement = connection.prepareStatement(sql);
-        preparedStatement.setObject(1, username);
-
-        final ResultSet rs = preparedStatement.executeQuery();
-        if(rs.next()) {
-            final UUID identity = 
-                    UUID.fromString(rs.getString("id"));
-            return get(identity);
+        try (Database.Scope scope = database.read()) {
+            final PreparedStatement preparedStatement = scope.prepare(sql);
+            preparedStatement.setObject(1, username);
+
+            try (ResultSet rs = preparedStatement.executeQuery()) {
+                if(rs.next()) {
+                    final UUID identity = 
+                            UUID.fromString(rs.getString("id"));
+                    return get(identity);
+                }
+            }
         }
         throw new DeletedException();
     }
@@ -11,23 +11,52 @@ import java.util.UUID;
  */
 public final class Channel {
     public final String name;
+    /*
+     * A window of the events in the channel, newest first.
+     * Only the most recent events are loaded with the channel,
+     * older ones are fetched page by page from the storage.
+     */
     public final List<Stored<Event>> events;
     public final HashMap<String, String> roles;
+    /* Whether there are events older than those in the window. */
+    public final boolean older;
+    /* The sequence number of the last event posted to the channel. */
+    public final long sequence;
 
     /**
      * Construct a Channel object from name and events.
      */
     public Channel(String name, List<Stored<Event>> events, HashMap<String, String> roles) {
+        this(name, events, roles, false, 0);
+    }
+
+    /**
+     * Construct a Channel object from name and a window of events,
+     * the last of which has the given sequence number.
+     */
+    public Channel(String name, List<Stored<Event>> events, HashMap<String, String> roles,
+                   boolean older, long sequence) {
         this.name=name;
         this.events=events;
         this.roles=roles;
+        this.older=older;
+        this.sequence=sequence;
     }
     
+    /**
+     * Give a user a role in the channel.
+     */
+    public Channel setRole(String user, String role) {
+        final HashMap<String, String> newRoles = new HashMap<String, String>(roles);
+        newRoles.put(user, role);
+        return new Channel(name, events, newRoles, older, sequence);
+    }
+
     /**
      * Post a new event to the channel.
      */
     public Channel postEvent(Stored<Event> event) {
-        return new Channel(name, List.cons(event,events), roles);
+        return new Channel(name, List.cons(event,events), roles, older, sequence + 1);
     }
     
     /**
@@ -36,7 +65,7 @@ public final class Channel {
      */
     public static class Event {
         public static enum Type {
-            message(0),join(1);
+            message(0),join(1),edit(2),delete(3);
             public final Integer code;
             Type(Integer code){this.code=code;}
             public static Type fromInteger(Integer i) {
@@ -44,6 +73,10 @@ public final class Channel {
                     return message;
                 else if (i.equals(1))
                     return join;
+                else if (i.equals(2))
+                    return edit;
+                else if (i.equals(3))
+                    return delete;
                 else
                     throw new IllegalArgumentException("Invalid Channel.Event.Type code:" + i);
             }
@@ -53,22 +86,35 @@ public final class Channel {
         public final Instant time;
         public final String sender;
         public final String message;
+        /* The event changed by an edit or deletion, otherwise null. */
+        public final UUID target;
         
         /**
          * Copy constructor
          */
         public Event(UUID channel, Instant time, String sender, Type type, String message) {
+            this(channel, time, sender, type, message, null);
+        }
+
+        /**
+         * Construct an event which may refer to another event.
+         */
+        public Event(UUID channel, Instant time, String sender, Type type, String message, UUID target) {
             if (time == null) {
                 throw new IllegalArgumentException("Event time cannot be null");
             }
             if (type.equals(message) && message == null) {
                 throw new IllegalArgumentException("null in Event creation");
             }
+            if ((type == Type.edit || type == Type.delete) && target == null) {
+                throw new IllegalArgumentException("Edits and deletions need a target event");
+            }
             this.channel=channel;
             this.time   =time;
             this.sender =sender;
             this.type   =type;
             this.message=message;
+            this.target =target;
         }
         /**
         * Create a message event, which represents a user writing to the channel.
@@ -91,11 +137,34 @@ public final class Channel {
                                 null);
         }
 
+        /**
+        * Create an edit event, which replaces the message of another event.
+        */
+        public static Event createEditEvent(UUID channel, Instant time, String sender, UUID target, String message) {
+            return new Event(   channel,
+                                time,
+                                sender,
+                                Event.Type.edit,
+                                message,
+                                target);
+        }
+        /**
+        * Create a delete event, which removes another event from the channel.
+        */
+        public static Event createDeleteEvent(UUID channel, Instant time, String sender, UUID target) {
+            return new Event(   channel,
+                                time,
+                                sender,
+                                Event.Type.delete,
+                                null,
+                                target);
+        }
+
         /**
          * Create a new event with a different message.
          */        
         public Event setMessage(String message) {
-            return new Event(channel,time,sender,type,message);
+            return new Event(channel,time,sender,type,message,target);
         }
     }
 
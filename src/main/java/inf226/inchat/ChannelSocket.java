@@ -0,0 +1,370 @@
+package inf226.inchat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WebSocketAdapter;
+import org.eclipse.jetty.websocket.api.WebSocketPingPongListener;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+import inf226.storage.Stored;
+import inf226.util.Maybe;
+import inf226.util.Mutable;
+
+/**
+ * A WebSocket connection which pushes the changes to all
+ * the channels of an account, so that a browser page needs
+ * only one connection.
+ *
+ * Every channel the account has joined is followed from the
+ * moment the client connects. A new version of a channel is
+ * pushed as a frame with the channel id on its first line and
+ * "activity <sequence> <new events>" on the second, the number
+ * of new events counting from when the client connected.
+ *
+ * The client sends "subscribe <channel> <version> <sequence>"
+ * for the channels it shows, giving the state it already has.
+ * The frames for those channels carry the same answer as
+ * /subscribe/ gives after the channel id instead.
+ *
+ * Frames wait in a bounded queue while the client is slow to
+ * read them. If the queue overflows it is dropped, and the
+ * client is sent the whole of every channel it shows instead.
+ *
+ * The client is pinged at every heartbeat, and disconnected if
+ * it has not answered for three of them. Its waiters are
+ * cancelled as soon as it disconnects.
+ */
+public final class ChannelSocket extends WebSocketAdapter
+    implements WebSocketPingPongListener {
+    private final InChat inchat;
+    private final Stored<Account> account;
+    private final BiFunction<Stored<Channel>,Maybe<Long>,String> render;
+    private final Executor executor;
+    private final int capacity;
+    private final ScheduledExecutorService timer;
+    private final long heartbeat;
+
+    // The fields below are guarded by the socket itself.
+    private final ArrayDeque<String> queue = new ArrayDeque<String>();
+    /* The sequence number of each followed channel when the client connected. */
+    private final Map<UUID,Long> followed = new HashMap<UUID,Long>();
+    /* The sequence number up to which the client shows each
+     * channel it subscribed to, or nothing if it needs the whole channel. */
+    private final Map<UUID,Maybe<Long>> shown = new HashMap<UUID,Maybe<Long>>();
+    /* Cancels the waiters of the socket which have not been called. */
+    private final Set<Runnable> waiting = new HashSet<Runnable>();
+    private boolean sending = false;
+    private boolean closed = false;
+    private long lastPong = System.currentTimeMillis();
+    private ScheduledFuture<?> heartbeats = null;
+
+    /**
+     * Create a socket for a logged in account.
+     *
+     * @param inchat   The chat to watch.
+     * @param account  The account of the client.
+     * @param render   Renders a channel after a sequence number, as for /subscribe/.
+     * @param executor Runs the rendering off the committing thread.
+     * @param capacity The number of frames which may wait for the client.
+     * @param timer    Runs the heartbeats.
+     * @param heartbeat The time between heartbeats, in milliseconds.
+     */
+    public ChannelSocket(InChat inchat,
+                         Stored<Account> account,
+                         BiFunction<Stored<Channel>,Maybe<Long>,String> render,
+                         Executor executor,
+                         int capacity,
+                         ScheduledExecutorService timer,
+                         long heartbeat) {
+        this.inchat = inchat;
+        this.account = account;
+        this.render = render;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.timer = timer;
+        this.heartbeat = heartbeat;
+    }
+
+    @Override
+    public void onWebSocketConnect(Session session) {
+        super.onWebSocketConnect(session);
+        synchronized(this) {
+            heartbeats = timer.scheduleAtFixedRate(this::beat, heartbeat, heartbeat,
+                                                   TimeUnit.MILLISECONDS);
+        }
+        final Map<UUID,Long> sequences
+            = inchat.getChannelSequences(account).defaultValue(new HashMap<UUID,Long>());
+        account.value.channels.forEach(entry -> {
+            final UUID identity = entry.second.identity;
+            if(!sequences.containsKey(identity))
+                return;
+            synchronized(this) {
+                followed.put(identity, sequences.get(identity));
+            }
+            watch(identity, entry.second.version);
+        });
+    }
+
+    @Override
+    public void onWebSocketText(String message) {
+        final String[] words = message.split(" ");
+        if(words.length != 4 || !words[0].equals("subscribe"))
+            return;
+        try {
+            final UUID identity = UUID.fromString(words[1]);
+            final UUID version = UUID.fromString(words[2]);
+            final long sequence = Long.parseLong(words[3]);
+            synchronized(this) {
+                // Only the channels of the account are followed.
+                if(closed || !followed.containsKey(identity) || shown.containsKey(identity))
+                    return;
+                shown.put(identity, Maybe.just(sequence));
+            }
+            // The channel may have changed since the client loaded it.
+            executor.execute(() -> inchat.getChannel(identity).forEach(channel -> {
+                if(!channel.version.equals(version))
+                    push(channel);
+            }));
+        } catch (IllegalArgumentException e) {
+            // Not a request we understand.
+        }
+    }
+
+    @Override
+    public void onWebSocketClose(int statusCode, String reason) {
+        super.onWebSocketClose(statusCode, reason);
+        final ArrayList<Runnable> cancels;
+        synchronized(this) {
+            closed = true;
+            followed.clear();
+            shown.clear();
+            queue.clear();
+            if(heartbeats != null)
+                heartbeats.cancel(false);
+            cancels = new ArrayList<Runnable>(waiting);
+            waiting.clear();
+        }
+        cancels.forEach(Runnable::run);
+    }
+
+    @Override
+    public void onWebSocketPing(ByteBuffer payload) {
+        // Answered by Jetty.
+    }
+
+    @Override
+    public synchronized void onWebSocketPong(ByteBuffer payload) {
+        lastPong = System.currentTimeMillis();
+    }
+
+    /**
+     * Ping the client, or disconnect it if it stopped answering.
+     */
+    private void beat() {
+        final Session session = getSession();
+        if(session == null || !session.isOpen())
+            return;
+        final boolean silent;
+        synchronized(this) {
+            silent = System.currentTimeMillis() - lastPong > 3 * heartbeat;
+        }
+        if(silent) {
+            session.close(StatusCode.SHUTDOWN, "No heartbeat");
+            return;
+        }
+        try {
+            session.getRemote().sendPing(ByteBuffer.allocate(0));
+        } catch (IOException e) {
+            session.close(StatusCode.SHUTDOWN, "Heartbeat failed");
+        }
+    }
+
+    /**
+     * Wait for the version of a channel after the given one.
+     */
+    private void watch(UUID identity, UUID version) {
+        // The waiter is only kept for cancelling until it is called.
+        final AtomicBoolean called = new AtomicBoolean(false);
+        final Mutable<Runnable> cancel = new Mutable<Runnable>(null);
+        final Maybe<Runnable> registered = inchat.onNextChannelVersion(identity, version,
+            channel -> executor.execute(() -> {
+                synchronized(this) {
+                    called.set(true);
+                    if(cancel.get() != null)
+                        waiting.remove(cancel.get());
+                }
+                push(channel);
+                if(isFollowing(channel.identity))
+                    watch(channel.identity, channel.version);
+            }));
+        try {
+            final Runnable c = registered.get();
+            final boolean stale;
+            synchronized(this) {
+                cancel.accept(c);
+                stale = closed;
+                if(!stale && !called.get())
+                    waiting.add(c);
+            }
+            // Closed while we registered.
+            if(stale)
+                c.run();
+        } catch (Maybe.NothingException e) {
+            forget(identity);
+        }
+    }
+
+    /**
+     * Whether a channel is still followed.
+     */
+    private synchronized boolean isFollowing(UUID identity) {
+        return followed.containsKey(identity);
+    }
+
+    /**
+     * Stop following a channel.
+     */
+    private synchronized void forget(UUID identity) {
+        followed.remove(identity);
+        shown.remove(identity);
+    }
+
+    /**
+     * Send a new version of a channel, unless it is older
+     * than what the client already has.
+     * Channels are loaded and rendered outside the lock of the
+     * socket, which is only held to queue the frames.
+     */
+    private void push(Stored<Channel> channel) {
+        if(!isFollowing(channel.identity))
+            return;
+        if(!inchat.readPermission(account, channel)) {
+            forget(channel.identity);
+            return;
+        }
+        final boolean overflow;
+        synchronized(this) {
+            if(closed || !followed.containsKey(channel.identity))
+                return;
+            overflow = queue.size() >= capacity;
+            if(overflow) {
+                // The client misses the dropped frames, so it gets the whole channels.
+                queue.clear();
+                shown.replaceAll((identity, seen) -> Maybe.nothing());
+            } else if(!shown.containsKey(channel.identity)) {
+                send(channel.identity + "\nactivity " + channel.value.sequence
+                     + " " + (channel.value.sequence - followed.get(channel.identity)));
+                return;
+            }
+        }
+        if(overflow) {
+            resynchronise();
+        } else {
+            show(channel);
+        }
+    }
+
+    /**
+     * Send each shown channel whole.
+     */
+    private void resynchronise() {
+        final UUID[] identities;
+        synchronized(this) {
+            identities = shown.keySet().toArray(new UUID[0]);
+        }
+        for(UUID identity : identities) {
+            try {
+                final Stored<Channel> channel = inchat.getChannel(identity).get();
+                if(inchat.readPermission(account, channel)) {
+                    show(channel);
+                } else {
+                    forget(identity);
+                }
+            } catch (Maybe.NothingException e) {
+                forget(identity);
+            }
+        }
+    }
+
+    /**
+     * Send the changes to a channel the client shows, since
+     * what it was last sent. If another version is sent while
+     * this one is rendered, it is rendered again.
+     */
+    private void show(Stored<Channel> channel) {
+        while(true) {
+            final Maybe<Long> seen;
+            synchronized(this) {
+                if(closed || !shown.containsKey(channel.identity))
+                    return;
+                seen = shown.get(channel.identity);
+            }
+            if(seen.defaultValue(Long.MIN_VALUE) > channel.value.sequence)
+                return;
+            final String frame = channel.identity + "\n" + render.apply(channel, seen);
+            synchronized(this) {
+                if(closed)
+                    return;
+                if(seen.equals(shown.get(channel.identity))) {
+                    send(frame);
+                    shown.put(channel.identity, Maybe.just(channel.value.sequence));
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Put a frame in the queue. Called with the lock held.
+     */
+    private void send(String frame) {
+        queue.add(frame);
+        if(!sending)
+            sendNext();
+    }
+
+    /**
+     * Write the next frame in the queue, one at a time.
+     * Called with the lock held.
+     */
+    private void sendNext() {
+        final String frame = queue.poll();
+        if(frame == null || closed || !isConnected()) {
+            sending = false;
+            return;
+        }
+        sending = true;
+        getRemote().sendString(frame, new WriteCallback() {
+            @Override
+            public void writeSuccess() {
+                synchronized(ChannelSocket.this) {
+                    sendNext();
+                }
+            }
+
+            @Override
+            public void writeFailed(Throwable error) {
+                synchronized(ChannelSocket.this) {
+                    sending = false;
+                    queue.clear();
+                }
+            }
+        });
+    }
+}
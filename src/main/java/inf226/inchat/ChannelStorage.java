@@ -2,10 +2,21 @@ package inf226.inchat;
 
 import java.sql.*;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.UUID;
-import java.util.TreeMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
 import inf226.storage.*;
@@ -19,48 +30,138 @@ import inf226.util.*;
 public final class ChannelStorage
     implements Storage<Channel,SQLException> {
     
-    final Connection connection;
+    final Database database;
     /* The waiters object represent the callbacks to
-     * make when the channel is updated.
+     * make when the channel is updated. Each channel has its
+     * own list, which is replaced by compare-and-set.
      */
-    private Map<UUID,List<Consumer<Stored<Channel>>>> waiters
-        = new TreeMap<UUID,List<Consumer<Stored<Channel>>>>();
+    private final ConcurrentHashMap<UUID,AtomicReference<List<Consumer<Stored<Channel>>>>> waiters
+        = new ConcurrentHashMap<UUID,AtomicReference<List<Consumer<Stored<Channel>>>>>();
+    /* The number of waiters cancelled before they were called. */
+    private final AtomicLong cancelled = new AtomicLong(0);
+    /* Numbers the commits in the order they hold the writer lock,
+     * since the notifications after them may run in any order. */
+    private final AtomicLong commits = new AtomicLong(0);
+    /* The latest version committed of each channel, as far as known. */
+    private final ConcurrentHashMap<UUID,Committed> versions
+        = new ConcurrentHashMap<UUID,Committed>();
+    /* The newest version of each channel whose waiters are
+     * still to be notified, when notifications are coalesced.
+     */
+    private final ConcurrentHashMap<UUID,Committed> pending
+        = new ConcurrentHashMap<UUID,Committed>();
+    /* Runs the coalesced notifications, or null. */
+    private final ScheduledExecutorService timer;
+    /* The time in milliseconds over which new versions of a channel
+     * are merged into one notification, or 0 to notify at once. */
+    private final long coalesce;
     public final EventStorage eventStore;
-    
-    public ChannelStorage(Connection connection) 
+    /* The number of events loaded with a channel. */
+    public final int window;
+
+    public ChannelStorage(Database database) 
+      throws SQLException {
+        this(database, 100);
+    }
+
+    public ChannelStorage(Database database, int window)
+      throws SQLException {
+        this(database, window, null, 0);
+    }
+
+    /**
+     * Create a channel storage which coalesces notifications.
+     * The waiters of a channel are notified at most once per
+     * coalescing window, with the newest version at its end.
+     * @param timer    A single threaded executor to run the notifications.
+     * @param coalesce The coalescing window in milliseconds, 0 to notify at once.
+     */
+    public ChannelStorage(Database database, int window,
+                          ScheduledExecutorService timer, long coalesce)
       throws SQLException {
-        this.connection = connection;
-        this.eventStore = new EventStorage(connection);
+        this.database = database;
+        this.window = window;
+        this.timer = timer;
+        this.coalesce = timer == null ? 0 : coalesce;
+        this.eventStore = new EventStorage(database);
         
-        connection.createStatement()
-                .executeUpdate("CREATE TABLE IF NOT EXISTS Channel (id TEXT PRIMARY KEY, version TEXT, name TEXT)");
-        connection.createStatement()
-                .executeUpdate("CREATE TABLE IF NOT EXISTS ChannelRoles (id TEXT PRIMARY KEY, user TEXT, role TEXT)");
+        try (Database.Scope scope = database.write();
+             Statement statement = scope.connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS Channel (id TEXT PRIMARY KEY, version TEXT, name TEXT, sequence INTEGER NOT NULL DEFAULT 0)");
+            if(!scope.hasColumn("Channel", "sequence")) {
+                // Continue from the last event numbered by the event storage.
+                statement.executeUpdate("ALTER TABLE Channel ADD COLUMN sequence INTEGER NOT NULL DEFAULT 0");
+                statement.executeUpdate("UPDATE Channel SET sequence = (SELECT COALESCE(MAX(sequence), 0) FROM Event WHERE Event.channel = Channel.id)");
+            }
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS ChannelRoles (id TEXT, user TEXT, role TEXT, PRIMARY KEY(id,user), FOREIGN KEY(id) REFERENCES Channel(id) ON DELETE CASCADE)");
+            final boolean rolesKeyedByChannel;
+            try (ResultSet rs = statement.executeQuery("SELECT pk FROM pragma_table_info('ChannelRoles') WHERE name = 'user'")) {
+                rolesKeyedByChannel = rs.next() && rs.getInt("pk") == 0;
+            }
+            if(rolesKeyedByChannel) {
+                // Older databases kept one role per channel, and
+                // the roles of deleted channels. Rebuild the table
+                // with the key and cascade of the current schema.
+                statement.executeUpdate("CREATE TABLE ChannelRolesNew (id TEXT, user TEXT, role TEXT, PRIMARY KEY(id,user), FOREIGN KEY(id) REFERENCES Channel(id) ON DELETE CASCADE)");
+                statement.executeUpdate("INSERT OR REPLACE INTO ChannelRolesNew SELECT id,user,role FROM ChannelRoles WHERE id IN (SELECT id FROM Channel)");
+                statement.executeUpdate("DROP TABLE ChannelRoles");
+                statement.executeUpdate("ALTER TABLE ChannelRolesNew RENAME TO ChannelRoles");
+            }
+            scope.commit();
+        }
     }
     
     @Override
     public Stored<Channel> save(Channel channel)
       throws SQLException {
         
-        final Stored<Channel> stored = new Stored<Channel>(channel);
-        String sql = "INSERT INTO Channel VALUES(?,?,?)";
-        PreparedStatement preparedStatement = connection.prepareStatement(sql);
-        preparedStatement.setObject(1, stored.identity);
-        preparedStatement.setObject(2, stored.version);
-        preparedStatement.setObject(3, channel.name);
-        preparedStatement.executeUpdate();
+        return saveAll(Collections.singletonList(channel)).get(0);
+    }
 
-        String rsql = "INSERT INTO ChannelRoles VALUES(?,?,?)";
-        PreparedStatement rPreparedStatement = connection.prepareStatement(rsql);
-        rPreparedStatement.setObject(1, stored.identity);
-        HashMap<String, String> roles = channel.roles;
-        for (String user : roles.keySet()){
-            rPreparedStatement.setObject(2, user);
-            rPreparedStatement.setObject(3, roles.get(user));
-            rPreparedStatement.executeUpdate();
+    /**
+     * Save several channels in one transaction, with their rows
+     * written in batches.
+     */
+    @Override
+    public java.util.List<Stored<Channel>> saveAll(Collection<Channel> channels)
+      throws SQLException {
+        final java.util.List<Stored<Channel>> stored = new ArrayList<Stored<Channel>>(channels.size());
+        try (Database.Scope scope = database.write()) {
+            String sql = "INSERT INTO Channel (id,version,name,sequence) VALUES(?,?,?,?)";
+            PreparedStatement preparedStatement = scope.prepare(sql);
+            for (Channel channel : channels) {
+                final Stored<Channel> saved = new Stored<Channel>(channel);
+                preparedStatement.setObject(1, saved.identity);
+                preparedStatement.setObject(2, saved.version);
+                preparedStatement.setObject(3, channel.name);
+                preparedStatement.setLong(4, channel.sequence);
+                preparedStatement.addBatch();
+                stored.add(saved);
+            }
+            preparedStatement.executeBatch();
+            for (Stored<Channel> saved : stored) {
+                addRoles(scope, saved.identity, saved.value.roles);
+            }
+            scope.commit();
         }
         return stored;
     }
+
+    /**
+     * Write the roles of a channel as one batch.
+     */
+    private static void addRoles(Database.Scope scope, UUID channel, HashMap<String, String> roles)
+      throws SQLException {
+        String rsql = "INSERT INTO ChannelRoles VALUES(?,?,?)";
+        PreparedStatement rPreparedStatement = scope.prepare(rsql);
+        for (Map.Entry<String, String> role : roles.entrySet()){
+            rPreparedStatement.setObject(1, channel);
+            rPreparedStatement.setObject(2, role.getKey());
+            rPreparedStatement.setObject(3, role.getValue());
+            rPreparedStatement.addBatch();
+        }
+        rPreparedStatement.executeBatch();
+    }
     
     @Override
     public synchronized Stored<Channel> update(Stored<Channel> channel,
@@ -68,31 +169,30 @@ public final class ChannelStorage
         throws UpdatedException,
             DeletedException,
             SQLException {
-        final Stored<Channel> current = get(channel.identity);
-        final Stored<Channel> updated = current.newVersion(new_channel);
-        if(current.version.equals(channel.version)) {
-            String sql = "UPDATE Channel SET(version, name)=(?,?) WHERE id=?";
-            PreparedStatement preparedStatement = connection.prepareStatement(sql);
-            preparedStatement.setObject(1, updated.version);
+        try (Database.Scope scope = database.write()) {
+            final Stored<Channel> updated = channel.newVersion(new_channel);
+            String sql = "UPDATE Channel SET (version,name) = (?,?) WHERE id = ? AND version = ?";
+            PreparedStatement preparedStatement = scope.prepare(sql);
+            preparedStatement.setString(1, updated.version.toString());
             preparedStatement.setObject(2, new_channel.name);
-            preparedStatement.setObject(3, updated.identity);
-            preparedStatement.executeUpdate();
-
-            String rsql = "UPDATE ChannelRoles SET(user,role)=(?,?) WHERE id=?";
-            PreparedStatement rPreparedStatement = connection.prepareStatement(rsql);
-            rPreparedStatement.setObject(3, updated.identity);
-            HashMap<String, String> roles = new_channel.roles;
-            for (String user : roles.keySet()){
-                rPreparedStatement.setObject(1, user);
-                rPreparedStatement.setObject(2, roles.get(user));
-                rPreparedStatement.executeUpdate();
+            preparedStatement.setString(3, channel.identity.toString());
+            preparedStatement.setString(4, channel.version.toString());
+            if(preparedStatement.executeUpdate() == 0) {
+                // Changed or deleted by someone else
+                throw new UpdatedException(get(channel.identity));
             }
 
-        } else {
-            throw new UpdatedException(current);
+            // Rewrite the roles
+            PreparedStatement rPreparedStatement = scope.prepare("DELETE FROM ChannelRoles WHERE id = ?");
+            rPreparedStatement.setString(1, updated.identity.toString());
+            rPreparedStatement.executeUpdate();
+            addRoles(scope, updated.identity, new_channel.roles);
+
+            final Committed committed = new Committed(commits.incrementAndGet(), updated.version);
+            scope.afterCommit(() -> giveNextVersion(updated.identity, committed));
+            scope.commit();
+            return updated;
         }
-        giveNextVersion(updated);
-        return updated;
     }
    
     @Override
@@ -100,163 +200,511 @@ public final class ChannelStorage
        throws UpdatedException,
               DeletedException,
               SQLException {
-        final Stored<Channel> current = get(channel.identity);
-        if(current.version.equals(channel.version)) {
-        String sql =  "DELETE FROM Channel WHERE id ='" + channel.identity + "'";
-        String rsql = "DELETE FROM ChannelRoles WHERE id ='" + channel.identity + "'";
-        connection.createStatement().executeUpdate(rsql);
-        connection.createStatement().executeUpdate(sql);
-        } else {
-        throw new UpdatedException(current);
+        try (Database.Scope scope = database.write()) {
+            final PreparedStatement statement = scope.prepare("DELETE FROM Channel WHERE id = ? AND version = ?");
+            statement.setString(1, channel.identity.toString());
+            statement.setString(2, channel.version.toString());
+            if(statement.executeUpdate() == 0) {
+                throw new UpdatedException(get(channel.identity));
+            }
+            final PreparedStatement roleStatement = scope.prepare("DELETE FROM ChannelRoles WHERE id = ?");
+            roleStatement.setString(1, channel.identity.toString());
+            roleStatement.executeUpdate();
+            scope.afterCommit(() -> {
+                versions.remove(channel.identity);
+                pending.remove(channel.identity);
+                waiters.remove(channel.identity);
+            });
+            scope.commit();
         }
     }
+    /**
+     * Get a channel with the newest events in its window.
+     */
     @Override
     public Stored<Channel> get(UUID id)
       throws DeletedException,
              SQLException {
+        return load(id, null);
+    }
 
-        final String rolesql = "SELECT user,role FROM ChannelRoles WHERE id = '" + id.toString() + "'";
-        final String channelsql = "SELECT version,name FROM Channel WHERE id = '" + id.toString() + "'";
-        final String eventsql = "SELECT id,rowid FROM Event WHERE channel = '" + id.toString() + "' ORDER BY rowid ASC";
-
-        final Statement roleStatement = connection.createStatement();
-        final Statement channelStatement = connection.createStatement();
-        final Statement eventStatement = connection.createStatement();
-
-        final ResultSet roleResult = roleStatement.executeQuery(rolesql);
-        final ResultSet channelResult = channelStatement.executeQuery(channelsql);
-        final ResultSet eventResult = eventStatement.executeQuery(eventsql);
-
-        final HashMap<String, String> roles = new HashMap();
-        while(roleResult.next()) {
-            final String user =
-                    roleResult.getString("user");
-            final String role =
-                    roleResult.getString("role");
-            roles.put(user, role);
+    /**
+     * Get a channel with a window of the events preceding the
+     * given event, for paging back through the history.
+     */
+    public Stored<Channel> getBefore(UUID id, UUID event)
+      throws DeletedException,
+             SQLException {
+        return load(id, event);
+    }
+
+    private Stored<Channel> load(UUID id, UUID before)
+      throws DeletedException,
+             SQLException {
+
+        final String rolesql = "SELECT user,role FROM ChannelRoles WHERE id = ?";
+        final String channelsql = "SELECT version,name,sequence FROM Channel WHERE id = ?";
+
+        try (Database.Scope scope = database.read()) {
+            final PreparedStatement roleStatement = scope.prepare(rolesql);
+            final PreparedStatement channelStatement = scope.prepare(channelsql);
+            roleStatement.setString(1, id.toString());
+            channelStatement.setString(1, id.toString());
+
+            try (ResultSet roleResult = roleStatement.executeQuery();
+                 ResultSet channelResult = channelStatement.executeQuery()) {
+
+                final HashMap<String, String> roles = new HashMap();
+                while(roleResult.next()) {
+                    final String user =
+                            roleResult.getString("user");
+                    final String role =
+                            roleResult.getString("role");
+                    roles.put(user, role);
+                }
+
+                if(channelResult.next()) {
+                    final UUID version = 
+                        UUID.fromString(channelResult.getString("version"));
+                    final String name =
+                        channelResult.getString("name");
+                    final long sequence = channelResult.getLong("sequence");
+                    return withWindow(scope,
+                                      new Stored<Channel>(new Channel(name, List.empty(), roles, false, sequence), id, version),
+                                      before);
+                } else {
+                    throw new DeletedException();
+                }
+            }
         }
+    }
+
+    /**
+     * Get several channels, each with the newest events in its
+     * window. The channels and roles are read with one query per
+     * chunk of channels, the event windows with one query each.
+     */
+    @Override
+    public java.util.List<Maybe<Stored<Channel>>> getAll(Collection<UUID> ids)
+      throws SQLException {
+        final String rolesql = "SELECT id,user,role FROM ChannelRoles WHERE id IN (?)";
+        final String channelsql = "SELECT id,version,name,sequence FROM Channel WHERE id IN (?)";
+        final Map<UUID,Stored<Channel>> found = new HashMap<UUID,Stored<Channel>>();
 
-        if(channelResult.next()) {
-            final UUID version = 
-                UUID.fromString(channelResult.getString("version"));
-            final String name =
-                channelResult.getString("name");
-            // Get all the events associated with this channel
+        try (Database.Scope scope = database.read()) {
+            for (java.util.List<UUID> chunk : Database.chunks(ids)) {
+                final Map<UUID,HashMap<String, String>> roles = new HashMap<UUID,HashMap<String, String>>();
+                try (ResultSet roleResult = scope.prepareIn(rolesql, chunk).executeQuery()) {
+                    while(roleResult.next()) {
+                        roles.computeIfAbsent(UUID.fromString(roleResult.getString("id")),
+                                              id -> new HashMap<String, String>())
+                             .put(roleResult.getString("user"), roleResult.getString("role"));
+                    }
+                }
+                final ArrayList<Stored<Channel>> channels = new ArrayList<Stored<Channel>>();
+                try (ResultSet channelResult = scope.prepareIn(channelsql, chunk).executeQuery()) {
+                    while(channelResult.next()) {
+                        final UUID id = UUID.fromString(channelResult.getString("id"));
+                        channels.add(new Stored<Channel>(
+                            new Channel(channelResult.getString("name"), List.empty(),
+                                        roles.getOrDefault(id, new HashMap<String, String>()),
+                                        false, channelResult.getLong("sequence")),
+                            id,
+                            UUID.fromString(channelResult.getString("version"))));
+                    }
+                }
+                for (Stored<Channel> channel : channels) {
+                    found.put(channel.identity, withWindow(scope, channel, null));
+                }
+            }
+        }
+        return Storage.inOrder(ids, found);
+    }
+
+    /**
+     * Fill in a window of the events of a channel, ending before
+     * the given event if it is not null.
+     */
+    private Stored<Channel> withWindow(Database.Scope scope,
+                                       Stored<Channel> channel,
+                                       UUID before)
+      throws SQLException {
+        // Fetch one event more than the window to see
+        // if there is any older history.
+        final ArrayList<Stored<Channel.Event>> newest
+            = newestEvents(scope, channel.identity, before, window + 1);
+        final boolean older = newest.size() > window;
+        final List.Builder<Stored<Channel.Event>> events = List.builder();
+        for(int i = Math.min(newest.size(), window) - 1; i >= 0; --i) {
+            events.accept(newest.get(i));
+        }
+        final Channel header = channel.value;
+        return (new Stored<Channel>(new Channel(header.name,events.getList(), header.roles, older, header.sequence),
+                                    channel.identity,channel.version));
+    }
+
+    /**
+     * Get the events numbered above after and up to until, newest
+     * first, leaving out those which were deleted since.
+     * Gives nothing if any of the numbers has no event in the log.
+     */
+    public Maybe<List<Stored<Channel.Event>>> eventsBetween(UUID channel, long after, long until)
+      throws SQLException {
+        final String sql = "SELECT " + EventStorage.columns + ", " + EventStorage.live + " AS live"
+                         + " FROM " + EventStorage.tables
+                         + " WHERE Event.channel = ? AND Event.sequence > ? AND Event.sequence <= ?"
+                         + " ORDER BY Event.sequence ASC";
+        try (Database.Scope scope = database.read()) {
+            final PreparedStatement statement = scope.prepare(sql);
+            statement.setString(1, channel.toString());
+            statement.setLong(2, after);
+            statement.setLong(3, until);
             final List.Builder<Stored<Channel.Event>> events = List.builder();
-            while(eventResult.next()) {
-                final UUID eventId = UUID.fromString(eventResult.getString("id"));
-                events.accept(eventStore.get(eventId));
+            long numbered = 0;
+            try (ResultSet rs = statement.executeQuery()) {
+                while(rs.next()) {
+                    ++numbered;
+                    if(rs.getBoolean("live"))
+                        events.accept(EventStorage.read(rs));
+                }
             }
-            return (new Stored<Channel>(new Channel(name,events.getList(), roles),id,version));
-        } else {
-            throw new DeletedException();
+            if(numbered != until - after)
+                return Maybe.nothing();
+            return Maybe.just(events.getList());
         }
     }
-    
+
     /**
-     * This function creates a "dummy" update.
-     * This function should be called when events are changed or
-     * deleted from the channel.
+     * Read up to count of the newest events in a channel, preceding
+     * the given event if it is not null. The events are walked
+     * backwards through the channel index, so only the rows that
+     * are returned are read.
      */
-    public Stored<Channel> noChangeUpdate(UUID channelId)
-        throws SQLException, DeletedException {
-        String sql = "UPDATE Channel SET" +
-                " (version) =('" + UUID.randomUUID() + "') WHERE id='"+ channelId + "'";
-        connection.createStatement().executeUpdate(sql);
-        Stored<Channel> channel = get(channelId);
-        giveNextVersion(channel);
-        return channel;
+    private static ArrayList<Stored<Channel.Event>> newestEvents(Database.Scope scope,
+                                                                UUID channel,
+                                                                UUID before,
+                                                                int count)
+      throws SQLException {
+        final String sql = "SELECT " + EventStorage.columns
+                         + " FROM " + EventStorage.tables
+                         + " WHERE Event.channel = ? AND " + EventStorage.shown
+                         + (before == null ? "" : " AND Event.rowid < (SELECT rowid FROM Event WHERE id = ?)")
+                         + " ORDER BY Event.rowid DESC LIMIT ?";
+        final PreparedStatement statement = scope.prepare(sql);
+        int parameter = 1;
+        statement.setString(parameter++, channel.toString());
+        if(before != null)
+            statement.setString(parameter++, before.toString());
+        statement.setInt(parameter, count);
+        final ArrayList<Stored<Channel.Event>> events = new ArrayList<Stored<Channel.Event>>();
+        try (ResultSet rs = statement.executeQuery()) {
+            while(rs.next()) {
+                events.add(EventStorage.read(rs));
+            }
+        }
+        return events;
     }
     
+    /**
+     * Append an event to a channel.
+     *
+     * Appends commute, so the version of the channel is replaced
+     * without being checked. The returned channel is read back
+     * once the append has committed, so its roles and window are
+     * not loaded while holding the writer lock, unless the append
+     * is part of a larger transaction. It includes any events
+     * appended concurrently.
+     */
+    public Stored<Channel> append(Stored<Channel> channel, Channel.Event event)
+      throws DeletedException,
+             SQLException {
+        if(!event.channel.equals(channel.identity))
+            throw new IllegalArgumentException("Event belongs to another channel");
+        // The channel loaded for the waiters, if any, is read back
+        // after the commit as well, so it is not loaded twice.
+        final Maybe.Builder<Stored<Channel>> notified = Maybe.builder();
+        try (Database.Scope scope = database.write()) {
+            final UUID version = UUID.randomUUID();
+            final PreparedStatement statement = scope.prepare("UPDATE Channel SET version = ? WHERE id = ?");
+            statement.setString(1, version.toString());
+            statement.setString(2, channel.identity.toString());
+            if(statement.executeUpdate() == 0) {
+                throw new DeletedException();
+            }
+            eventStore.save(event);
+            final Committed committed = new Committed(commits.incrementAndGet(), version);
+            scope.afterCommit(() -> giveNextVersion(channel.identity, committed).forEach(notified));
+            scope.commit();
+        }
+        try {
+            return notified.getMaybe().get();
+        } catch (Maybe.NothingException e) {
+            return get(channel.identity);
+        }
+    }
+
     /**
      * Get the current version UUID for the specified channel.
      * @param id UUID for the channel.
      */
+    @Override
     public UUID getCurrentVersion(UUID id)
       throws DeletedException,
              SQLException {
 
-        final String channelsql = "SELECT version FROM Channel WHERE id = '" + id.toString() + "'";
-        final Statement channelStatement = connection.createStatement();
+        final String channelsql = "SELECT version FROM Channel WHERE id = ?";
+        try (Database.Scope scope = database.read()) {
+            final PreparedStatement channelStatement = scope.prepare(channelsql);
+            channelStatement.setString(1, id.toString());
 
-        final ResultSet channelResult = channelStatement.executeQuery(channelsql);
-        if(channelResult.next()) {
-            return UUID.fromString(
-                    channelResult.getString("version"));
+            try (ResultSet channelResult = channelStatement.executeQuery()) {
+                if(channelResult.next()) {
+                    return UUID.fromString(
+                            channelResult.getString("version"));
+                }
+            }
         }
         throw new DeletedException();
     }
     
+    /**
+     * Get the sequence number of the last event in a channel.
+     * @param id UUID for the channel.
+     */
+    public long getCurrentSequence(UUID id)
+      throws DeletedException,
+             SQLException {
+
+        final String channelsql = "SELECT sequence FROM Channel WHERE id = ?";
+        try (Database.Scope scope = database.read()) {
+            final PreparedStatement channelStatement = scope.prepare(channelsql);
+            channelStatement.setString(1, id.toString());
+
+            try (ResultSet channelResult = channelStatement.executeQuery()) {
+                if(channelResult.next()) {
+                    return channelResult.getLong("sequence");
+                }
+            }
+        }
+        throw new DeletedException();
+    }
+
+    /**
+     * Get the sequence numbers of several channels at once.
+     * Channels which are not found are left out.
+     */
+    public Map<UUID,Long> getCurrentSequences(Collection<UUID> ids)
+      throws SQLException {
+        final String sql = "SELECT id,sequence FROM Channel WHERE id IN (?)";
+        final Map<UUID,Long> sequences = new HashMap<UUID,Long>();
+        try (Database.Scope scope = database.read()) {
+            for (java.util.List<UUID> chunk : Database.chunks(ids)) {
+                try (ResultSet rs = scope.prepareIn(sql, chunk).executeQuery()) {
+                    while(rs.next()) {
+                        sequences.put(UUID.fromString(rs.getString("id")), rs.getLong("sequence"));
+                    }
+                }
+            }
+        }
+        return sequences;
+    }
+
     /**
      * Wait for a new version of a channel.
      * This is a blocking call to get the next version of a channel.
      * @param identity The identity of the channel.
      * @param version  The previous version accessed.
-     * @return The newest version after the specified one.
+     * @param timeout  The longest time to wait, in milliseconds.
+     * @return The newest version after the specified one, or
+     *         nothing if there was none before the timeout.
      */
-    public Stored<Channel> waitNextVersion(UUID identity, UUID version)
+    public Maybe<Stored<Channel>> waitNextVersion(UUID identity, UUID version, long timeout)
       throws DeletedException,
              SQLException {
-        var result
-            = Maybe.<Stored<Channel>>builder();
-        // Insert our result consumer
-        synchronized(waiters) {
-            var channelWaiters 
-                = Maybe.just(waiters.get(identity));
-            waiters.put(identity
-                       ,List.cons(result
-                                 ,channelWaiters.defaultValue(List.empty())));
+        final CompletableFuture<Stored<Channel>> result
+            = new CompletableFuture<Stored<Channel>>();
+        final Runnable cancel = onNextVersion(identity, version, result::complete);
+        try {
+            return Maybe.just(result.get(timeout, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            // The callback never fails, so we timed out.
         }
+        cancel.run();
+        // The version might have come just before we cancelled.
+        return new Maybe<Stored<Channel>>(result.getNow(null));
+    }
+
+    /**
+     * Call back once there is a new version of a channel.
+     * The callback is made at once if the channel has already
+     * moved past the given version, and otherwise from the
+     * thread committing the next version, so it should
+     * hand any real work over to another thread.
+     * @param identity The identity of the channel.
+     * @param version  The previous version accessed.
+     * @param callback Receives the newest version after the specified one.
+     * @return Cancels the callback, for waiters who stop waiting.
+     */
+    public Runnable onNextVersion(UUID identity,
+                                  UUID version,
+                                  Consumer<Stored<Channel>> callback)
+      throws DeletedException,
+             SQLException {
+        // The callback is registered before looking at the current
+        // version, so a version committed in between is not missed,
+        // but then it might be called twice.
+        final AtomicBoolean called = new AtomicBoolean(false);
+        final Consumer<Stored<Channel>> once = channel -> {
+            if(called.compareAndSet(false, true))
+                callback.accept(channel);
+        };
+        final AtomicReference<List<Consumer<Stored<Channel>>>> channelWaiters
+            = waiters.computeIfAbsent(identity,
+                                      i -> new AtomicReference<List<Consumer<Stored<Channel>>>>(List.empty()));
+        channelWaiters.updateAndGet(list -> List.cons(once, list));
+        final Runnable cancel = () -> {
+            if(called.compareAndSet(false, true)) {
+                channelWaiters.updateAndGet(list -> list.filter(w -> w != once));
+                cancelled.incrementAndGet();
+            }
+        };
         // Test if there already is a new version avaiable
-        if(!getCurrentVersion(identity).equals(version)) {
-            return get(identity);
-        }
-        // Wait
-        synchronized(result) {
-            while(true) {
-                try {
-                    result.wait();
-                    return result.getMaybe().get();
-                } catch (InterruptedException e) {
-                    System.err.println("Thread interrupted.");
-                } catch (Maybe.NothingException e) {
-                    // Still no result, looping
-                }
+        Committed current = versions.get(identity);
+        if(current == null) {
+            // Not changed since we started, so ask the database once.
+            final UUID stored;
+            try {
+                stored = getCurrentVersion(identity);
+            } catch (DeletedException e) {
+                called.set(true);
+                channelWaiters.updateAndGet(list -> list.filter(w -> w != once));
+                throw e;
             }
+            // Any commit notified later is newer than what was read.
+            final Committed read = new Committed(0, stored);
+            current = Maybe.just(versions.putIfAbsent(identity, read)).defaultValue(read);
+        }
+        // A waiter which already has the version about to be
+        // notified waits for the one after it.
+        if(!current.version.equals(version) && !Maybe.just(pending.get(identity)).map(p -> p.version.equals(version)).defaultValue(false)) {
+            // Called back now, so it is no longer waiting.
+            channelWaiters.updateAndGet(list -> list.filter(w -> w != once));
+            once.accept(get(identity));
         }
+        return cancel;
+    }
+
+    /**
+     * The number of callbacks waiting for a new version.
+     */
+    public int waiting() {
+        int count = 0;
+        for(AtomicReference<List<Consumer<Stored<Channel>>>> channelWaiters : waiters.values())
+            count += channelWaiters.get().length;
+        return count;
+    }
+
+    /**
+     * The number of callbacks cancelled before a new version came,
+     * whether their waiter timed out, failed or went away.
+     */
+    public long cancelled() {
+        return cancelled.get();
     }
     
     /**
-     * Notify all waiters of a new version
+     * Notify all waiters of a new version, at once or at the
+     * end of the coalescing window it starts. Versions committed
+     * while the window is open replace the pending one if they
+     * are later, and the waiters see the version they have until
+     * it closes.
+     * @return The channel given to the waiters notified at once.
      */
-    private void giveNextVersion(Stored<Channel> channel) {
-        synchronized(waiters) {
-            Maybe<List<Consumer<Stored<Channel>>>> channelWaiters 
-                = Maybe.just(waiters.get(channel.identity));
-            try {
-                channelWaiters.get().forEach(w -> {
-                    w.accept(channel);
-                    synchronized(w) {
-                        w.notifyAll();
-                    }
-                });
-            } catch (Maybe.NothingException e) {
-                // No were waiting for us :'(
-            }
-            waiters.put(channel.identity,List.empty());
+    private Maybe<Stored<Channel>> giveNextVersion(UUID identity, Committed committed) {
+        if(coalesce <= 0) {
+            return notifyWaiters(identity, committed);
+        }
+        final AtomicBoolean opened = new AtomicBoolean(false);
+        pending.compute(identity, (id, waiting) -> {
+            if(waiting != null)
+                return Committed.later(waiting, committed);
+            opened.set(true);
+            return committed;
+        });
+        if(opened.get()) {
+            timer.schedule(() -> {
+                final Committed newest = pending.remove(identity);
+                if(newest != null)
+                    notifyWaiters(identity, newest);
+            }, coalesce, TimeUnit.MILLISECONDS);
+        }
+        return Maybe.nothing();
+    }
+
+    /**
+     * Notify all waiters of a new version, loading the channel
+     * only if someone is waiting for it. The version is recorded
+     * before the waiters are taken, so that a waiter registering
+     * at the same time either is taken or sees the new version.
+     * A version older than the one recorded has been overtaken,
+     * and its waiters are left for the newer one.
+     * @return The channel given to the waiters, if it was loaded.
+     */
+    private Maybe<Stored<Channel>> notifyWaiters(UUID identity, Committed committed) {
+        if(versions.merge(identity, committed, Committed::later) != committed)
+            return Maybe.nothing();
+        final AtomicReference<List<Consumer<Stored<Channel>>>> channelWaiters
+            = waiters.get(identity);
+        if(channelWaiters == null || channelWaiters.get().length == 0)
+            return Maybe.nothing();
+        final List<Consumer<Stored<Channel>>> taken = channelWaiters.getAndSet(List.empty());
+        try {
+            final Stored<Channel> channel = get(identity);
+            taken.forEach(w -> w.accept(channel));
+            return Maybe.just(channel);
+        } catch (DeletedException | SQLException e) {
+            // The waiters will find out on their next request.
+            return Maybe.nothing();
         }
     }
     
+    /**
+     * A version of a channel, numbered in commit order.
+     */
+    private static final class Committed {
+        final long order;
+        final UUID version;
+
+        Committed(long order, UUID version) {
+            this.order = order;
+            this.version = version;
+        }
+
+        /**
+         * The later of two committed versions.
+         */
+        static Committed later(Committed recorded, Committed committed) {
+            return committed.order > recorded.order ? committed : recorded;
+        }
+    }
+
     /**
      * Get the channel belonging to a specific event.
      */
     public Stored<Channel> lookupChannelForEvent(Stored<Channel.Event> e)
       throws SQLException, DeletedException {
-        String sql = "SELECT channel FROM ChannelEvent WHERE event='" + e.identity + "'";
-        final ResultSet rs = connection.createStatement().executeQuery(sql);
-        if(rs.next()) {
-            final UUID channelId = UUID.fromString(rs.getString("channel"));
-            return get(channelId);
+        String sql = "SELECT channel FROM Event WHERE id = ?";
+        try (Database.Scope scope = database.read()) {
+            final PreparedStatement statement = scope.prepare(sql);
+            statement.setString(1, e.identity.toString());
+            try (ResultSet rs = statement.executeQuery()) {
+                if(rs.next()) {
+                    final UUID channelId = UUID.fromString(rs.getString("channel"));
+                    return get(channelId);
+                }
+            }
         }
         throw new DeletedException();
     }
@@ -2,6 +2,10 @@ package inf226.inchat;
 
 import java.sql.*;
 import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.function.Consumer;
 
@@ -13,150 +17,299 @@ import inf226.util.*;
 
 public final class EventStorage
     implements Storage<Channel.Event,SQLException> {
-    
-    private final Connection connection;
-    
-    public EventStorage(Connection connection) 
+
+    private final Database database;
+
+    public EventStorage(Database database)
       throws SQLException {
-        this.connection = connection;
-        connection.createStatement()
-                .executeUpdate("CREATE TABLE IF NOT EXISTS Event (id TEXT PRIMARY KEY, version TEXT, channel TEXT, type INTEGER, time TEXT, FOREIGN KEY(channel) REFERENCES Channel(id) ON DELETE CASCADE)");
-        connection.createStatement()
-                .executeUpdate("CREATE TABLE IF NOT EXISTS Message (id TEXT PRIMARY KEY, sender TEXT, content Text, FOREIGN KEY(id) REFERENCES Event(id) ON DELETE CASCADE)");
-        connection.createStatement()
-                .executeUpdate("CREATE TABLE IF NOT EXISTS Joined (id TEXT PRIMARY KEY, sender TEXT, FOREIGN KEY(id) REFERENCES Event(id) ON DELETE CASCADE)");
+        this.database = database;
+        try (Database.Scope scope = database.write();
+             Statement statement = scope.connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS Event (id TEXT PRIMARY KEY, version TEXT, channel TEXT, type INTEGER, time TEXT, sequence INTEGER, FOREIGN KEY(channel) REFERENCES Channel(id) ON DELETE CASCADE)");
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS Message (id TEXT PRIMARY KEY, sender TEXT, content Text, FOREIGN KEY(id) REFERENCES Event(id) ON DELETE CASCADE)");
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS Joined (id TEXT PRIMARY KEY, sender TEXT, FOREIGN KEY(id) REFERENCES Event(id) ON DELETE CASCADE)");
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS Edited (id TEXT PRIMARY KEY, sender TEXT, target TEXT, content TEXT, FOREIGN KEY(id) REFERENCES Event(id) ON DELETE CASCADE)");
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS Deleted (id TEXT PRIMARY KEY, sender TEXT, target TEXT, FOREIGN KEY(id) REFERENCES Event(id) ON DELETE CASCADE)");
+            if(!scope.hasColumn("Event", "sequence")) {
+                // Number the events of older databases in the order
+                // they were appended, which is the order of the rowid.
+                statement.executeUpdate("ALTER TABLE Event ADD COLUMN sequence INTEGER");
+                statement.executeUpdate("CREATE TEMP TABLE EventNumber (event INTEGER PRIMARY KEY, sequence INTEGER)");
+                statement.executeUpdate("INSERT INTO EventNumber SELECT rowid, ROW_NUMBER() OVER (PARTITION BY channel ORDER BY rowid) FROM Event");
+                statement.executeUpdate("UPDATE Event SET sequence = (SELECT sequence FROM EventNumber WHERE event = Event.rowid)");
+                statement.executeUpdate("DROP TABLE EventNumber");
+            }
+            // Channels page through their events by rowid.
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS EventChannel ON Event(channel)");
+            // Clients ask for the events after a sequence number.
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS EventSequence ON Event(channel,sequence)");
+            // Events are shown with their latest edit, unless deleted.
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS EditedTarget ON Edited(target)");
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS DeletedTarget ON Deleted(target)");
+            scope.commit();
+        }
     }
-    
+
     @Override
     public Stored<Channel.Event> save(Channel.Event event)
       throws SQLException {
-        
+
         final Stored<Channel.Event> stored = new Stored<Channel.Event>(event);
 
-        String sql = "INSERT INTO Event VALUES(?,?,?,?,?)";
-        PreparedStatement preparedStatement = connection.prepareStatement(sql);
-        preparedStatement.setObject(1,stored.identity);
-        preparedStatement.setObject(2, stored.version);
-        preparedStatement.setObject(3, event.channel);
-        preparedStatement.setObject(4, event.type.code);
-        preparedStatement.setObject(5, event.time);
-        preparedStatement.executeUpdate();
+        try (Database.Scope scope = database.write()) {
+            // Each event takes the next sequence number of its channel.
+            String sql = "UPDATE Channel SET sequence = sequence + 1 WHERE id = ?";
+            PreparedStatement preparedStatement = scope.prepare(sql);
+            preparedStatement.setObject(1, event.channel);
+            preparedStatement.executeUpdate();
 
-        switch (event.type) {
-            case message:
-                sql = "INSERT INTO Message VALUES(?,?,?)";
-                preparedStatement = connection.prepareStatement(sql);
-                preparedStatement.setObject(1,stored.identity);
-                preparedStatement.setObject(2, event.sender);
-                preparedStatement.setObject(3, event.message);
-                break;
-            case join:
-                sql = "INSERT INTO Joined VALUES(?,?)";
-                preparedStatement = connection.prepareStatement(sql);
-                preparedStatement.setObject(1, stored.identity);
-                preparedStatement.setObject(2, event.sender);
-                break;
+            sql = "INSERT INTO Event (id,version,channel,type,time,sequence)"
+                + " VALUES(?,?,?,?,?,(SELECT sequence FROM Channel WHERE id = ?))";
+            preparedStatement = scope.prepare(sql);
+            preparedStatement.setObject(1,stored.identity);
+            preparedStatement.setObject(2, stored.version);
+            preparedStatement.setObject(3, event.channel);
+            preparedStatement.setObject(4, event.type.code);
+            preparedStatement.setObject(5, event.time);
+            preparedStatement.setObject(6, event.channel);
+            preparedStatement.executeUpdate();
+
+            switch (event.type) {
+                case message:
+                    sql = "INSERT INTO Message VALUES(?,?,?)";
+                    preparedStatement = scope.prepare(sql);
+                    preparedStatement.setObject(1,stored.identity);
+                    preparedStatement.setObject(2, event.sender);
+                    preparedStatement.setObject(3, event.message);
+                    break;
+                case join:
+                    sql = "INSERT INTO Joined VALUES(?,?)";
+                    preparedStatement = scope.prepare(sql);
+                    preparedStatement.setObject(1, stored.identity);
+                    preparedStatement.setObject(2, event.sender);
+                    break;
+                case edit:
+                    sql = "INSERT INTO Edited VALUES(?,?,?,?)";
+                    preparedStatement = scope.prepare(sql);
+                    preparedStatement.setObject(1, stored.identity);
+                    preparedStatement.setObject(2, event.sender);
+                    preparedStatement.setObject(3, event.target);
+                    preparedStatement.setObject(4, event.message);
+                    break;
+                case delete:
+                    // The deleted text goes, with every revision of
+                    // it, while the events stay in the log.
+                    preparedStatement = scope.prepare("UPDATE Message SET content = '' WHERE id = ?");
+                    preparedStatement.setObject(1, event.target);
+                    preparedStatement.executeUpdate();
+                    preparedStatement = scope.prepare("UPDATE Edited SET content = '' WHERE target = ?");
+                    preparedStatement.setObject(1, event.target);
+                    preparedStatement.executeUpdate();
+                    sql = "INSERT INTO Deleted VALUES(?,?,?)";
+                    preparedStatement = scope.prepare(sql);
+                    preparedStatement.setObject(1, stored.identity);
+                    preparedStatement.setObject(2, event.sender);
+                    preparedStatement.setObject(3, event.target);
+                    break;
+            }
+            preparedStatement.executeUpdate();
+            scope.commit();
         }
-        preparedStatement.executeUpdate();
         return stored;
     }
-    
+
     @Override
     public synchronized Stored<Channel.Event> update(Stored<Channel.Event> event,
                                             Channel.Event new_event)
         throws UpdatedException,
             DeletedException,
             SQLException {
-    final Stored<Channel.Event> current = get(event.identity);
-    final Stored<Channel.Event> updated = current.newVersion(new_event);
-    if(current.version.equals(event.version)) {
-        String sql = "UPDATE Event SET(version,channel,time,type) WHERE id=?";
-        PreparedStatement preparedStatement = connection.prepareStatement(sql);
-        preparedStatement.setObject(1, updated.version);
-        preparedStatement.setObject(2, new_event.channel);
-        preparedStatement.setObject(3, new_event.time);
-        preparedStatement.setObject(4, new_event.type.code);
-        preparedStatement.setObject(5, updated.identity);
-        preparedStatement.executeUpdate();
-
-        switch (new_event.type) {
-            case message:
-                sql = "UPDATE Message SET(?,?) WHERE id=?";
-                preparedStatement = connection.prepareStatement(sql);
-                preparedStatement.setObject(1, new_event.sender);
-                preparedStatement.setObject(2, new_event.message);
-                preparedStatement.setObject(3, updated.identity);
-
-                break;
-            case join:
-                sql = "UPDATE Joined SET(?) WHERE id=?";
-                preparedStatement = connection.prepareStatement(sql);
-                preparedStatement.setObject(1, new_event.sender);
-                preparedStatement.setObject(2, updated.identity);
+        try (Database.Scope scope = database.write()) {
+            final Stored<Channel.Event> updated = event.newVersion(new_event);
+            String sql = "UPDATE Event SET (version,channel,time,type) = (?,?,?,?) WHERE id = ? AND version = ?";
+            PreparedStatement preparedStatement = scope.prepare(sql);
+            preparedStatement.setString(1, updated.version.toString());
+            preparedStatement.setString(2, new_event.channel.toString());
+            preparedStatement.setString(3, new_event.time.toString());
+            preparedStatement.setObject(4, new_event.type.code);
+            preparedStatement.setString(5, event.identity.toString());
+            preparedStatement.setString(6, event.version.toString());
+            if(preparedStatement.executeUpdate() == 0) {
+                // Changed or deleted by someone else
+                throw new UpdatedException(get(event.identity));
+            }
 
-                break;
+            switch (new_event.type) {
+                case message:
+                    sql = "UPDATE Message SET (sender,content) = (?,?) WHERE id = ?";
+                    preparedStatement = scope.prepare(sql);
+                    preparedStatement.setObject(1, new_event.sender);
+                    preparedStatement.setObject(2, new_event.message);
+                    preparedStatement.setString(3, updated.identity.toString());
+                    break;
+                case join:
+                    sql = "UPDATE Joined SET sender = ? WHERE id = ?";
+                    preparedStatement = scope.prepare(sql);
+                    preparedStatement.setObject(1, new_event.sender);
+                    preparedStatement.setString(2, updated.identity.toString());
+                    break;
+                case edit:
+                    sql = "UPDATE Edited SET (sender,target,content) = (?,?,?) WHERE id = ?";
+                    preparedStatement = scope.prepare(sql);
+                    preparedStatement.setObject(1, new_event.sender);
+                    preparedStatement.setObject(2, new_event.target);
+                    preparedStatement.setObject(3, new_event.message);
+                    preparedStatement.setString(4, updated.identity.toString());
+                    break;
+                case delete:
+                    sql = "UPDATE Deleted SET (sender,target) = (?,?) WHERE id = ?";
+                    preparedStatement = scope.prepare(sql);
+                    preparedStatement.setObject(1, new_event.sender);
+                    preparedStatement.setObject(2, new_event.target);
+                    preparedStatement.setString(3, updated.identity.toString());
+                    break;
+            }
+            preparedStatement.executeUpdate();
+            scope.commit();
+            return updated;
         }
-        connection.createStatement().executeUpdate(sql);
-    } else {
-        throw new UpdatedException(current);
     }
-        return updated;
-    }
-   
+
     @Override
     public synchronized void delete(Stored<Channel.Event> event)
        throws UpdatedException,
               DeletedException,
               SQLException {
-        final Stored<Channel.Event> current = get(event.identity);
-        if(current.version.equals(event.version)) {
-        String sql =  "DELETE FROM Event WHERE id ='" + event.identity + "'";
-        connection.createStatement().executeUpdate(sql);
-        } else {
-        throw new UpdatedException(current);
+        try (Database.Scope scope = database.write()) {
+            final PreparedStatement statement = scope.prepare("DELETE FROM Event WHERE id = ? AND version = ?");
+            statement.setString(1, event.identity.toString());
+            statement.setString(2, event.version.toString());
+            if(statement.executeUpdate() == 0) {
+                throw new UpdatedException(get(event.identity));
+            }
+            scope.commit();
         }
     }
     @Override
     public Stored<Channel.Event> get(UUID id)
       throws DeletedException,
              SQLException {
-        final String sql = "SELECT version,channel,time,type FROM Event WHERE id = '" + id.toString() + "'";
-        final Statement statement = connection.createStatement();
-        final ResultSet rs = statement.executeQuery(sql);
-
-        if(rs.next()) {
-            final UUID version = UUID.fromString(rs.getString("version"));
-            final UUID channel = 
-                UUID.fromString(rs.getString("channel"));
-            final Channel.Event.Type type = 
-                Channel.Event.Type.fromInteger(rs.getInt("type"));
-            final Instant time = 
-                Instant.parse(rs.getString("time"));
-            
-            final Statement mstatement = connection.createStatement();
-            switch(type) {
-                case message:
-                    final String msql = "SELECT sender,content FROM Message WHERE id = '" + id.toString() + "'";
-                    final ResultSet mrs = mstatement.executeQuery(msql);
-                    mrs.next();
-                    return new Stored<Channel.Event>(
-                            Channel.Event.createMessageEvent(channel,time,mrs.getString("sender"),mrs.getString("content")),
-                            id,
-                            version);
-                case join:
-                    final String asql = "SELECT sender FROM Joined WHERE id = '" + id.toString() + "'";
-                    final ResultSet ars = mstatement.executeQuery(asql);
-                    ars.next();
-                    return new Stored<Channel.Event>(
-                            Channel.Event.createJoinEvent(channel,time,ars.getString("sender")),
-                            id,
-                            version);
+        final String sql = "SELECT " + columns + " FROM " + tables + " WHERE Event.id = ? AND " + live;
+        try (Database.Scope scope = database.read()) {
+            final PreparedStatement statement = scope.prepare(sql);
+            statement.setString(1, id.toString());
+            try (ResultSet rs = statement.executeQuery()) {
+                if(rs.next()) {
+                    return read(rs);
+                }
+                throw new DeletedException();
             }
         }
-        throw new DeletedException();
     }
-    
-}
 
+    @Override
+    public List<Maybe<Stored<Channel.Event>>> getAll(Collection<UUID> ids)
+      throws SQLException {
+        final String sql = "SELECT " + columns + " FROM " + tables + " WHERE Event.id IN (?) AND " + live;
+        final Map<UUID,Stored<Channel.Event>> found = new HashMap<UUID,Stored<Channel.Event>>();
+        try (Database.Scope scope = database.read()) {
+            for (List<UUID> chunk : Database.chunks(ids)) {
+                final PreparedStatement statement = scope.prepareIn(sql, chunk);
+                try (ResultSet rs = statement.executeQuery()) {
+                    while(rs.next()) {
+                        final Stored<Channel.Event> event = read(rs);
+                        found.put(event.identity, event);
+                    }
+                }
+            }
+        }
+        return Storage.inOrder(ids, found);
+    }
+
+    /**
+     * The columns needed by read(). Select them from
+     * the tables below to load complete events.
+     * Events are never changed in place: an edited message has
+     * the content of its latest edit, and the identity of that
+     * edit as its version.
+     */
+    static final String columns
+        = "Event.id,COALESCE(Revision.id,Event.version) AS version,Event.channel,Event.type,Event.time,"
+        + "Message.sender AS msender,COALESCE(Revision.content,Message.content) AS content,"
+        + "Joined.sender AS jsender,"
+        + "Edited.sender AS esender,Edited.target AS etarget,Edited.content AS econtent,"
+        + "Deleted.sender AS dsender,Deleted.target AS dtarget";
+
+    /**
+     * The Event table joined with the tables holding the
+     * type specific data of each event.
+     */
+    static final String tables
+        = "Event LEFT JOIN Message ON Message.id = Event.id"
+        + " LEFT JOIN Joined ON Joined.id = Event.id"
+        + " LEFT JOIN Edited ON Edited.id = Event.id"
+        + " LEFT JOIN Deleted ON Deleted.id = Event.id"
+        + " LEFT JOIN Edited AS Revision ON Revision.rowid ="
+        + " (SELECT MAX(Later.rowid) FROM Edited AS Later WHERE Later.target = Event.id)";
 
- 
+    /**
+     * The condition for events which have not been deleted.
+     * Deleted events stay in the log, so that their sequence
+     * numbers are still accounted for.
+     */
+    static final String live
+        = "NOT EXISTS (SELECT 1 FROM Deleted AS Gone WHERE Gone.target = Event.id)";
+
+    /**
+     * The condition for events shown in a channel, as opposed to
+     * edits and deletions, which only change other events, and
+     * events which were deleted.
+     */
+    static final String shown
+        = "Event.type IN (" + Channel.Event.Type.message.code + "," + Channel.Event.Type.join.code + ")"
+        + " AND " + live;
+
+    /**
+     * Read an event from the current row of a result set
+     * containing the columns listed above.
+     */
+    static Stored<Channel.Event> read(ResultSet rs)
+      throws SQLException {
+        final UUID id = UUID.fromString(rs.getString("id"));
+        final UUID version = UUID.fromString(rs.getString("version"));
+        final UUID channel =
+            UUID.fromString(rs.getString("channel"));
+        final Channel.Event.Type type =
+            Channel.Event.Type.fromInteger(rs.getInt("type"));
+        final Instant time =
+            Instant.parse(rs.getString("time"));
+
+        switch(type) {
+            case message:
+                return new Stored<Channel.Event>(
+                        Channel.Event.createMessageEvent(channel,time,rs.getString("msender"),rs.getString("content")),
+                        id,
+                        version);
+            case join:
+                return new Stored<Channel.Event>(
+                        Channel.Event.createJoinEvent(channel,time,rs.getString("jsender")),
+                        id,
+                        version);
+            case edit:
+                return new Stored<Channel.Event>(
+                        Channel.Event.createEditEvent(channel,time,rs.getString("esender"),
+                                                      UUID.fromString(rs.getString("etarget")),
+                                                      rs.getString("econtent")),
+                        id,
+                        version);
+            case delete:
+                return new Stored<Channel.Event>(
+                        Channel.Event.createDeleteEvent(channel,time,rs.getString("dsender"),
+                                                        UUID.fromString(rs.getString("dtarget"))),
+                        id,
+                        version);
+        }
+        throw new IllegalArgumentException("Unknown event type: " + type);
+    }
+
+}
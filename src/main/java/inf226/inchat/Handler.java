@@ -3,32 +3,47 @@ package inf226.inchat;
 import java.io.*;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
 import java.io.IOException;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.handler.ContextHandler;
+import org.eclipse.jetty.websocket.server.WebSocketHandler;
+import org.eclipse.jetty.websocket.servlet.ServletUpgradeRequest;
+import org.eclipse.jetty.websocket.servlet.ServletUpgradeResponse;
+import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
+import java.net.HttpCookie;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.util.TreeMap;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 import java.lang.IllegalArgumentException;
 import java.time.format.DateTimeFormatter;
 import java.time.ZoneId;
 
 
-import java.sql.DriverManager;
-import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.ResultSet;
+import java.sql.Statement;
 
 import java.time.Instant;
 import inf226.storage.*;
 import inf226.inchat.*;
 import inf226.util.*;
-import org.owasp.encoder.Encode;
+import inf226.util.immutable.List;
 
 /**
  * The Hanlder class handles all HTTP and HTML components.
@@ -37,20 +52,71 @@ import org.owasp.encoder.Encode;
 
 public class Handler extends AbstractHandler
 {
-  // Static resources:
-  private final File style = new File("style.css");
-  private final File login = new File("login.html");
-  private final File register = new File("register.html");
-  private final File landingpage = new File("index.html");
-  private final File script = new File("script.js");
+  // Static resources, served from memory:
+  private final StaticAssets assets;
 
   private static InChat inchat;
+  // Long-polls are answered with 204 after this many milliseconds.
+  private static final long subscribeTimeout = Long.getLong("inchat.subscribeTimeout", 30000);
+  // WebSocket clients are pinged this often, in milliseconds.
+  private static final long heartbeatInterval = Long.getLong("inchat.heartbeat", 25000);
+  // New versions of a channel within this many milliseconds wake
+  // its subscribers once, 0 wakes them for every version.
+  private static final long coalesceWindow = Long.getLong("inchat.coalesce", 50);
+  // Rendered events, by identity and version. Every page render
+  // looks up its events here, so the cache is striped by key.
+  private final StripedCache<String,byte[]> fragments
+      = new StripedCache<String,byte[]>(4 << 20, 16, fragment -> fragment.length);
+  // Answers to subscriptions, rendered once for all subscribers.
+  private final PayloadCache payloads = new PayloadCache(this::renderSubscription, 8 << 20);
   
+  // Static files are cached by browsers for this many seconds
+  // before they check with their ETag whether they changed.
+  private static final long assetMaxAge = Long.getLong("inchat.assetMaxAge", 300);
+  // Part of the ETags of pages, so that they change when the server restarts.
+  private static final String renderEpoch = Long.toHexString(System.currentTimeMillis());
+  // Reload static files when they change, for development.
+  private static final boolean reloadAssets = Boolean.getBoolean("inchat.reloadAssets");
+
   private final DateTimeFormatter formatter =
                 DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm (z)")
                                  .withZone( ZoneId.systemDefault() );
 
   
+  private static final Template banned = Template.compile(
+        "<div class=\"main\">\n"
+      + "You are banned from this channel.</div>\n");
+  private static final Template welcome = Template.compile(
+        "<div class=\"channel\">Hello!</div>\n");
+  private static final Template createForm = Template.compile(
+        "<form class=\"login\" action=\"/\" method=\"POST\">"
+      + "<div class=\"name\"><input type=\"text\" name=\"channelname\" placeholder=\"Channel name\"></div>"
+      + "<div class=\"submit\"><input type=\"submit\" name=\"createchannel\" value=\"Create Channel\"></div>"
+      + "</form>\n");
+  private static final Template joinForm = Template.compile(
+        "<form class=\"login\" action=\"/join\" method=\"POST\">"
+      + "<div class=\"name\"><input type=\"text\" name=\"channelid\" placeholder=\"Channel ID number:\"></div>"
+      + "<div class=\"submit\"><input type=\"submit\" name=\"joinchannel\" value=\"Join channel\"></div>"
+      + "<input type=\"hidden\" name=\"csrf_token\" value={{0|raw}}/>"
+      + "</form>\n");
+  private static final Template editForm = Template.compile(
+        "<form class=\"entry\" action=\"/channel/{{0}}\" method=\"post\">\n"
+      + "  <div class=\"user\">You</div>\n"
+      + "  <input type=\"hidden\" name=\"editmessage\" value=\"Edit\">\n"
+      + "  <input type=\"hidden\" name=\"message\" value=\"{{1}}\">\n"
+      + "  <textarea id=\"messageInput\" class=\"messagebox\" placeholder=\"Post a message in this channel!\" name=\"content\">{{2}}</textarea>\n"
+      + "  <div class=\"controls\"><input style=\"float: right;\" type=\"submit\" name=\"edit\" value=\"Edit\"></div>\n"
+      + "</form>\n"
+      + "<script>\n"
+      + "let msginput = document.getElementById(\"messageInput\");\n"
+      + "msginput.focus()\n"
+      + "msginput.addEventListener(\"keypress\", submitOnEnter);\n"
+      + "</script>\n");
+
+  public Handler(StaticAssets assets) {
+    this.assets = assets;
+  }
+
   /**
    * This is the entry point for HTTP requests.
    * Some requests require login, while some can be processed
@@ -68,19 +134,19 @@ public class Handler extends AbstractHandler
 
     // Pages which do not require login
     if (target.equals("/style.css")) {
-        serveFile(response,style,"text/css;charset=utf-8");
+        serveAsset(request, response, "style.css");
         baseRequest.setHandled(true);
         return;
     } else if (target.equals("/login")) {
-        serveFile(response,login, "text/html;charset=utf-8");
+        serveAsset(request, response, "login.html");
         baseRequest.setHandled(true);
         return;
     } else if (target.equals("/register")) {
-        serveFile(response,register, "text/html;charset=utf-8");
+        serveAsset(request, response, "register.html");
         baseRequest.setHandled(true);
         return;
     }else if (target.equals("/script.js")) {
-        serveFile(response,script, "application/javascript");
+        serveAsset(request, response, "script.js");
         baseRequest.setHandled(true);
         return;
     }
@@ -144,7 +210,18 @@ public class Handler extends AbstractHandler
         response.addCookie(cookie);
 
 
-        final PrintWriter out = response.getWriter();
+        if(target.startsWith("/subscribe/")) {
+            // Answered with bytes, so it must not take the writer.
+            try {
+                subscribe(target, baseRequest, request, response);
+            } catch (Maybe.NothingException e) {
+                /* No version given, Jetty will give them a 404. */
+            }
+            return;
+        }
+
+        // Pages are built in a buffer, and written once handled.
+        final HtmlBuffer out = HtmlBuffer.acquire();
         // Handle a logged in request.
         try {
             if(target.startsWith("/channel/")) {
@@ -152,8 +229,23 @@ public class Handler extends AbstractHandler
                     = target.substring(("/channel/").length());
                 
                 // Resolve channel within the current session
-                Stored<Channel> channel =
-                    Util.lookup(account.value.channels,alias).get();
+                final Reference<Channel,SQLException> reference
+                    = Util.lookup(account.value.channels,alias).get();
+                if(request.getMethod().equals("GET")) {
+                    // The page only changes with the channel or the account.
+                    // The account was loaded with the current version of
+                    // its channels, so this needs no query of its own.
+                    final String etag = channelEtag(reference.version, account);
+                    final String ifNoneMatch = request.getHeader("If-None-Match");
+                    if(ifNoneMatch != null && etagMatches(ifNoneMatch, etag)) {
+                        response.setHeader("ETag", etag);
+                        response.setHeader("Cache-Control", "private, no-cache");
+                        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                        baseRequest.setHandled(true);
+                        return ;
+                    }
+                }
+                Stored<Channel> channel = inchat.getChannel(reference).get();
                 if(request.getMethod().equals("POST")) {
                     //todo sjekk om anti-CSRF token stemmer her
 
@@ -190,23 +282,37 @@ public class Handler extends AbstractHandler
                     
                 }
 
-                    out.println("<!DOCTYPE html>");
-                    out.println("<html lang=\"en-GB\">");
-                    printStandardHead(out, "inChat: " + alias);
-                    out.println("<body>");
-                    printStandardTop(out, "inChat: " + alias);
-                    out.println("<div class=\"main\">");
+                    // The event to page back from, if any.
+                    final Maybe<UUID> before;
+                    try {
+                        before = new Maybe<String>(request.getParameter("before")).map(UUID::fromString);
+                    } catch (IllegalArgumentException e) {
+                        response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                        out.text("Invalid UUID\n");
+                        baseRequest.setHandled(true);
+                        return ;
+                    }
+                    printPageTop(out, "inChat: " + alias, "inChat: " + alias);
+                    mainTop.render(out);
                     printChannelList(out, account.value, alias);
                     System.out.println("permission html: "+ channel.value.roles.get(account.value.user.value.name.getUserName()));
                     if(inchat.readPermission(account, channel)) {
-                    printChannel(out, channel, alias);
+                    if(before.isNothing()) {
+                        printChannel(out, channel, alias);
+                    } else {
+                        // Page back through the history of the channel.
+                        printChannelHistory(out,
+                            inchat.getChannelBefore(channel.identity, before.get()).get(),
+                            alias);
+                    }
                     }else{
-                    out.println("<div class=\"main\">");
-                    out.println("You are banned from this channel.</div>");
+                    banned.render(out);
+                    }
+                    mainBottom.render(out);
+                    if(request.getMethod().equals("GET")) {
+                        response.setHeader("ETag", channelEtag(channel.version, account));
+                        response.setHeader("Cache-Control", "private, no-cache");
                     }
-                    out.println("</div>");
-                    out.println("</body>");
-                    out.println("</html>");
                     response.setStatus(HttpServletResponse.SC_OK);
                     baseRequest.setHandled(true);
 
@@ -215,70 +321,33 @@ public class Handler extends AbstractHandler
             
             if(target.startsWith("/create")) {
                 //todo sjekk om anti-CSRF token stemmer her
-                out.println("<!DOCTYPE html>");
-                out.println("<html lang=\"en-GB\">");
-                printStandardHead(out, "inChat: Create a new channel!");
-                out.println("<body>");
-                printStandardTop(out,  "inChat: Create a new channel!");
-                
-                out.println("<form class=\"login\" action=\"/\" method=\"POST\">"
-                  + "<div class=\"name\"><input type=\"text\" name=\"channelname\" placeholder=\"Channel name\"></div>"
-                  + "<div class=\"submit\"><input type=\"submit\" name=\"createchannel\" value=\"Create Channel\"></div>"
-                  + "</form>");
-                out.println("</body>");
-                out.println("</html>");
+                printPageTop(out, "inChat: Create a new channel!", "inChat: Create a new channel!");
+                createForm.render(out);
+                pageBottom.render(out);
                 response.setStatus(HttpServletResponse.SC_OK);
                 baseRequest.setHandled(true);
                 return ;
                 
             }
             if(target.equals("/joinChannel")) {
-                out.println("<!DOCTYPE html>");
-                out.println("<html lang=\"en-GB\">");
-                printStandardHead(out, "inChat: " + account.value.user.value.name.getUserName());
-                out.println("<body>");
-                printStandardTop(out, "inChat – Join a channel!");
-                
-                out.println("<form class=\"login\" action=\"/join\" method=\"POST\">"
-                  + "<div class=\"name\"><input type=\"text\" name=\"channelid\" placeholder=\"Channel ID number:\"></div>"
-                  + "<div class=\"submit\"><input type=\"submit\" name=\"joinchannel\" value=\"Join channel\"></div>"
-                  + "<input type=\"hidden\" name=\"csrf_token\" value="+csrfToken+"/>" //fixme test
-                  + "</form>");
-                out.println("</body>");
-                out.println("</html>");
+                printPageTop(out, "inChat: " + account.value.user.value.name.getUserName(),
+                             "inChat – Join a channel!");
+                joinForm.render(out, csrfToken); //fixme test
+                pageBottom.render(out);
                 response.setStatus(HttpServletResponse.SC_OK);
                 baseRequest.setHandled(true);
                 return ;
             }
             if(target.startsWith("/editMessage")) {
-                String encAlias = Encode.forHtml((new Maybe<String>
-                        (request.getParameter("channelname"))).get());
-                String encMessageid = Encode.forHtml((new Maybe<String>
-                        (request.getParameter("message"))).get());
-                String encOriginalContent = Encode.forHtml((new Maybe<String>
-                        (request.getParameter("originalcontent"))).get());
-                out.println("<!DOCTYPE html>");
-                out.println("<html lang=\"en-GB\">");
-                printStandardHead(out, "inChat: Edit message");
-                out.println("<body>");
-                printStandardTop(out,  "inChat: Edit message");
-                out.println("<script src=\"/script.js\"></script>");
-                
-                out.println("<form class=\"entry\" action=\"/channel/" + encAlias + "\" method=\"post\">");
-                out.println("  <div class=\"user\">You</div>");
-                out.println("  <input type=\"hidden\" name=\"editmessage\" value=\"Edit\">");
-                out.println("  <input type=\"hidden\" name=\"message\" value=\"" + encMessageid + "\">");
-                out.println("  <textarea id=\"messageInput\" class=\"messagebox\" placeholder=\"Post a message in this channel!\" name=\"content\">" + encOriginalContent + "</textarea>");
-                out.println("  <div class=\"controls\"><input style=\"float: right;\" type=\"submit\" name=\"edit\" value=\"Edit\"></div>");
-                out.println("</form>");
-                out.println("<script>");
-                out.println("let msginput = document.getElementById(\"messageInput\");");
-                out.println("msginput.focus()");
-                out.println("msginput.addEventListener(\"keypress\", submitOnEnter);");
-                out.println("</script>");
-            
-                out.println("</body>");
-                out.println("</html>");
+                String alias = (new Maybe<String>
+                        (request.getParameter("channelname"))).get();
+                String messageid = (new Maybe<String>
+                        (request.getParameter("message"))).get();
+                String originalContent = (new Maybe<String>
+                        (request.getParameter("originalcontent"))).get();
+                printPageTop(out, "inChat: Edit message", "inChat: Edit message");
+                editForm.render(out, alias, messageid, originalContent);
+                pageBottom.render(out);
                 response.setStatus(HttpServletResponse.SC_OK);
                 baseRequest.setHandled(true);
                 return ;
@@ -301,14 +370,14 @@ public class Handler extends AbstractHandler
                 } catch (IllegalArgumentException e) {
                     // Not a valid UUID request a new one
                     response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-                    out.println("Invalid UUID");
+                    out.text("Invalid UUID\n");
                     baseRequest.setHandled(true);
                     return ;
                     
                 } catch (Maybe.NothingException e) {
                     // Joining failed.
                     response.setStatus(HttpServletResponse.SC_FORBIDDEN);
-                    out.println("Failed to join channel.");
+                    out.text("Failed to join channel.\n");
                     baseRequest.setHandled(true);
                     return ;
                 }
@@ -323,21 +392,6 @@ public class Handler extends AbstractHandler
                 return;
             }
             
-            if(target.startsWith("/subscribe/")) {
-                System.err.println("Got a subscribe request.");
-                UUID version = 
-                    UUID.fromString(Maybe.just(request.getParameter("version")).get());
-                UUID identity =
-                    UUID.fromString(target.substring(("/subscribe/").length()));
-                Stored<Channel> channel = inchat.waitNextChannelVersion(identity,version).get();
-                System.err.println("Got a new version.");
-                out.println(channel.version);
-                printChannelEvents(out,channel);
-                response.setStatus(HttpServletResponse.SC_OK);
-                baseRequest.setHandled(true);
-                return ;
-            }
-
             if(request.getParameter("createchannel") != null) {
                 // Try to create a new channel
                 System.err.println("Channel creation.");
@@ -356,23 +410,18 @@ public class Handler extends AbstractHandler
                 } catch (Maybe.NothingException e) {
                     System.err.println("Could not create channel.");
                     response.setStatus(HttpServletResponse.SC_FORBIDDEN);
-                    out.println("Failed to create channel.");
+                    out.text("Failed to create channel.\n");
                     baseRequest.setHandled(true);
                     return;
                 }
             }
             if(target.equals("/")) {
-                out.println("<!DOCTYPE html>");
-                out.println("<html lang=\"en-GB\">");
-                printStandardHead(out, "inChat: " + account.value.user.value.name.getUserName());
-                out.println("<body>");
-                printStandardTop(out, "inChat: " + account.value.user.value.name.getUserName());
-                out.println("<div class=\"main\">");
+                printPageTop(out, "inChat: " + account.value.user.value.name.getUserName(),
+                             "inChat: " + account.value.user.value.name.getUserName());
+                mainTop.render(out);
                 printChannelList(out, account.value, "");
-                out.println("<div class=\"channel\">Hello!</div>");
-                out.println("</div>");
-                out.println("</body>");
-                out.println("</html>");
+                welcome.render(out);
+                mainBottom.render(out);
                 response.setStatus(HttpServletResponse.SC_OK);
                 baseRequest.setHandled(true);
                 return ;
@@ -382,12 +431,18 @@ public class Handler extends AbstractHandler
             /* Something was not found, we let the handler pass through,
                Jetty will give them a 404. */
             return;
+        } finally {
+            if(baseRequest.isHandled() && out.size() > 0) {
+                response.setContentLength(out.size());
+                out.writeTo(response.getOutputStream());
+            }
+            out.close();
         }
     } catch (Maybe.NothingException e) {
         // All authentication methods failed
         
         if (target.equals("/")) {
-            serveFile(response,landingpage, "text/html;charset=utf-8");
+            serveAsset(request, response, "index.html");
             baseRequest.setHandled(true);
             return;
         } else {
@@ -401,138 +456,455 @@ public class Handler extends AbstractHandler
   }
 
 
+    private static final Template pageTop = Template.compile(
+          "<!DOCTYPE html>\n"
+        + "<html lang=\"en-GB\">\n"
+        + "<head>\n"
+        + "<meta charset=\"UTF-8\">\n"
+        + "<meta name=\"viewport\" content=\"width=device-width, initial-scale=1.0, user-scalable=yes\">\n"
+        + "<style type=\"text/css\">code{white-space: pre;}</style>\n"
+        + "<link rel=\"stylesheet\" href=\"/style.css\">\n"
+        + "<script src=\"/script.js\"></script>\n"
+        + "<title>{{0}}</title>\n"
+        + "</head>\n"
+        + "<body>\n"
+        + "<h1 class=\"topic\"><a style=\"color: black;\" href=\"/\">{{1}}</a></h1>\n"
+        + "<div class=\"actionbar\">\n"
+        + "<a class=\"action\" href=\"/create\">Create a channel!</a>\n"
+        + "<a class=\"action\" href=\"/joinChannel\">Join a channel!</a>\n"
+        + "<a class=\"action\" href=\"/logout\">Logout</a>\n"
+        + "</div>\n");
+    private static final Template pageBottom = Template.compile(
+          "</body>\n"
+        + "</html>\n");
+    private static final Template mainTop = Template.compile(
+          "<div class=\"main\">\n");
+    private static final Template mainBottom = Template.compile(
+          "</div>\n"
+        + "</body>\n"
+        + "</html>\n");
+
     /**
-     * Print the standard HTML-header for InChat.
+     * Print the standard HTML-header for InChat, and the
+     * standard top with actions.
      * @param out The output to write to.
      * @param title The title of the page.
+     * @param topic The heading of the page.
      */
-    private void printStandardHead(PrintWriter out, String title) {
-        out.println("<head>");
-        out.println("<meta charset=\"UTF-8\">");
-        out.println("<meta name=\"viewport\" content=\"width=device-width, initial-scale=1.0, user-scalable=yes\">");
-        out.println("<style type=\"text/css\">code{white-space: pre;}</style>");
-        out.println("<link rel=\"stylesheet\" href=\"/style.css\">");
-        
-        out.println("<title>" + Encode.forHtml(title) + "</title>");
-        out.println("</head>");
+    private void printPageTop(HtmlBuffer out, String title, String topic) {
+        pageTop.render(out, title, topic);
     }
 
-    /**
-     * Print the standard top with actions.
-     */
-    private void printStandardTop(PrintWriter out, String topic) {
-        out.println("<h1 class=\"topic\"><a style=\"color: black;\" href=\"/\">"+ Encode.forHtml(topic) + "</a></h1>");
-        out.println("<div class=\"actionbar\">");
-        out.println("<a class=\"action\" href=\"/create\">Create a channel!</a>");
-        out.println("<a class=\"action\" href=\"/joinChannel\">Join a channel!</a>");
-        out.println("<a class=\"action\" href=\"/logout\">Logout</a>");
-        out.println("</div>");
-    }
+    private static final Template chanListTop = Template.compile(
+          "<aside class=\"chanlist\">\n"
+        + "<p>Your channels:</p>\n"
+        + "<ul class=\"chanlist\">\n");
+    private static final Template chanListEntry = Template.compile(
+          "<li id=\"chan-{{0|raw}}\"> <a href=\"/channel/{{1}}\">{{1}}</a> <span class=\"badge\"></span></li>\n");
+    private static final Template chanListBottom = Template.compile(
+          "</ul>\n"
+        + "<script>connect();</script>\n"
+        + "</aside>\n");
 
     /**
-     * Print a list of channesl for an account.
+     * Print a list of channesl for an account, with badges
+     * counting the new events pushed while the page is open.
      */
-    private void printChannelList(PrintWriter out, Account account, String current) {
-        out.println("<aside class=\"chanlist\">");
-        out.println("<p>Your channels:</p>");
-        out.println("<ul class=\"chanlist\">");
+    private void printChannelList(HtmlBuffer out, Account account, String current) {
+        chanListTop.render(out);
         account.channels.forEach( entry -> {
-            out.println("<li> <a href=\"/channel/" + Encode.forHtml(entry.first) + "\">" + Encode.forHtml(entry.first) + "</a></li>");
+            chanListEntry.render(out, entry.second.identity, entry.first);
         });
-        out.println("</ul>");
-        out.println("</aside>");
+        chanListBottom.render(out);
     }
-  
+
+    private static final Template channelTop = Template.compile(
+          "<main id=\"channel\" role=\"main\" class=\"channel\">\n");
+    private static final Template channelBottom = Template.compile(
+          "<script>watch(\"{{0|raw}}\",\"{{1|raw}}\",{{2|raw}});</script>\n"
+        + "<form class=\"entry\" action=\"/channel/{{3}}\" method=\"post\">\n"
+        + "  <div class=\"user\">You</div>\n"
+        + "  <input type=\"hidden\" name=\"newmessage\" value=\"Send\">\n"
+        + "  <textarea id=\"messageInput\" class=\"messagebox\" placeholder=\"Post a message in this channel!\" name=\"message\"></textarea>\n"
+        + "  <div class=\"controls\"><input style=\"float: right;\" type=\"submit\" name=\"send\" value=\"Send\"></div>\n"
+        + "</form>\n"
+        + "<script>\n"
+        + "let msginput = document.getElementById(\"messageInput\");\n"
+        + "msginput.focus()\n"
+        + "msginput.addEventListener(\"keypress\", submitOnEnter);\n"
+        + "</script>\n"
+        + "</main>\n"
+        + "<aside class=\"chanmenu\">\n"
+        + "<h4>Channel ID:</h4><br>{{0|raw}}<br>\n"
+        + "<p><a href=\"/join?channelid={{0|raw}}\">Join link</a></p>\n"
+        + "<h4>Set permissions</h4><form action=\"/channel/{{3}}\" method=\"post\">\n"
+        + "<input style=\"width: 8em;\" type=\"text\" placeholder=\"User name\" name=\"username\">\n"
+        + "<select name=\"role\" required=\"required\">\n"
+        + "<option value=\"owner\">Owner</option>\n"
+        + "<option value=\"moderator\">Moderator</option>\n"
+        + "<option value=\"participant\">Participant</option>\n"
+        + "<option value=\"observer\">Observer</option>\n"
+        + "<option value=\"banned\">Banned</option>\n"
+        + "<input type=\"submit\" name=\"setpermission\" value=\"Set!\">\n"
+        + "</select>\n"
+        + "</form>\n"
+        + "</aside>\n");
+
     /**
     * Render a channel as HTML
     **/
-    private void printChannel(PrintWriter out,
+    private void printChannel(HtmlBuffer out,
                               Stored<Channel> channel,
                               String alias) {
-        
-        out.println("<main id=\"channel\" role=\"main\" class=\"channel\">");
+        channelTop.render(out);
         printChannelEvents(out,channel);
-        out.println("<script src=\"/script.js\"></script>");
-        out.println("<script>subscribe(\"" + channel.identity +"\",\"" + channel.version + "\");</script>");
-        
-        out.println("<form class=\"entry\" action=\"/channel/" + Encode.forHtml(alias) + "\" method=\"post\">");
-        out.println("  <div class=\"user\">You</div>");
-        out.println("  <input type=\"hidden\" name=\"newmessage\" value=\"Send\">");
-        out.println("  <textarea id=\"messageInput\" class=\"messagebox\" placeholder=\"Post a message in this channel!\" name=\"message\"></textarea>");
-        out.println("  <div class=\"controls\"><input style=\"float: right;\" type=\"submit\" name=\"send\" value=\"Send\"></div>");
-        out.println("</form>");
-        out.println("<script>");
-        out.println("let msginput = document.getElementById(\"messageInput\");");
-        out.println("msginput.focus()");
-        out.println("msginput.addEventListener(\"keypress\", submitOnEnter);");
-        out.println("</script>");
-        out.println("</main>");
-        // Print out the aside:
-        out.println("<aside class=\"chanmenu\">");
-        out.println("<h4>Channel ID:</h4><br>" + channel.identity +"<br>");
-        out.println("<p><a href=\"/join?channelid=" + channel.identity + "\">Join link</a></p>");
-
-        out.println("<h4>Set permissions</h4><form action=\"/channel/" + Encode.forHtml(alias) + "\" method=\"post\">");
-        out.println("<input style=\"width: 8em;\" type=\"text\" placeholder=\"User name\" name=\"username\">");
-        out.println("<select name=\"role\" required=\"required\">");
-        out.println("<option value=\"owner\">Owner</option>");
-        out.println("<option value=\"moderator\">Moderator</option>");
-        out.println("<option value=\"participant\">Participant</option>");
-        out.println("<option value=\"observer\">Observer</option>");
-        out.println("<option value=\"banned\">Banned</option>");
-        out.println("<input type=\"submit\" name=\"setpermission\" value=\"Set!\">");
-        out.println("</select>");
-        out.println("</form>");
-
-        out.println("</aside>");
+        channelBottom.render(out, channel.identity, channel.version, channel.value.sequence, alias);
     }
-    
+
+    private static final Template historyBottom = Template.compile(
+          "<p><a class=\"action\" href=\"/channel/{{0}}\">Back to the newest messages</a></p>\n"
+        + "</main>\n");
+
+    /**
+    * Render a page of older events in a channel as HTML.
+    **/
+    private void printChannelHistory(HtmlBuffer out,
+                                     Stored<Channel> channel,
+                                     String alias) {
+        channelTop.render(out);
+        printChannelEvents(out,channel);
+        historyBottom.render(out, alias);
+    }
+
+    /**
+     * Answer a subscription to a channel once it has a version
+     * after the one the client has, or with 204 after a timeout.
+     */
+    private void subscribe(String target,
+                           Request baseRequest,
+                           HttpServletRequest request,
+                           HttpServletResponse response)
+      throws Maybe.NothingException {
+        System.err.println("Got a subscribe request.");
+        final UUID version;
+        final UUID identity;
+        // The last event the client has, if it says.
+        final Maybe<Long> sequence;
+        try {
+            version = UUID.fromString(Maybe.just(request.getParameter("version")).get());
+            identity = UUID.fromString(target.substring(("/subscribe/").length()));
+            sequence = new Maybe<String>(request.getParameter("sequence")).map(Long::parseLong);
+        } catch (IllegalArgumentException e) {
+            // Not a valid UUID or sequence number.
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            baseRequest.setHandled(true);
+            return ;
+        }
+        final boolean gzip
+            = new Maybe<String>(request.getHeader("Accept-Encoding"))
+                  .map(accepted -> accepted.contains("gzip")).defaultValue(false);
+        // The request is suspended until there is a new version,
+        // so waiting subscribers do not hold on to threads.
+        final AsyncContext async = request.startAsync();
+        async.setTimeout(subscribeTimeout);
+        // Either the new version, the timeout or an error answers.
+        final AtomicBoolean answered = new AtomicBoolean(false);
+        final Maybe<Runnable> cancel = inchat.onNextChannelVersion(identity, version, channel -> {
+            if(answered.compareAndSet(false, true)) {
+                async.start(() -> {
+                    System.err.println("Got a new version.");
+                    try {
+                        writePayload(response, payloads.get(channel, sequence), gzip);
+                    } catch (IOException e) {
+                        // The client went away.
+                    }
+                    async.complete();
+                });
+            }
+        });
+        if(cancel.isNothing()) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            async.complete();
+            baseRequest.setHandled(true);
+            return ;
+        }
+        async.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                // Nothing new, the client asks again with the same version.
+                if(answered.compareAndSet(false, true)) {
+                    cancel.forEach(Runnable::run);
+                    response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+                    async.complete();
+                }
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                // Dispatching or writing failed. Jetty does not read from
+                // the connection while the request is suspended, so a
+                // client which disconnects is only noticed at the timeout.
+                if(answered.compareAndSet(false, true)) {
+                    cancel.forEach(Runnable::run);
+                    async.complete();
+                }
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {}
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {}
+        });
+        baseRequest.setHandled(true);
+    }
+
+    /**
+     * Write a rendered answer, compressed if the client takes it.
+     */
+    private static void writePayload(HttpServletResponse response,
+                                     PayloadCache.Payload payload,
+                                     boolean gzip)
+      throws IOException {
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setHeader("Vary", "Accept-Encoding");
+        if(gzip && payload.compressible()) {
+            response.setHeader("Content-Encoding", "gzip");
+            response.setContentLength(payload.compressedSize());
+            payload.writeCompressedTo(response.getOutputStream());
+        } else {
+            response.setContentLength(payload.size());
+            payload.writeTo(response.getOutputStream());
+        }
+    }
+
+    /**
+     * Accept a WebSocket connection to /events from a logged in client.
+     */
+    private Object createSocket(ServletUpgradeRequest request,
+                                ServletUpgradeResponse response,
+                                Executor executor,
+                                ScheduledExecutorService timer) {
+        if(!request.getRequestPath().equals("/events")) {
+            refuse(response, HttpServletResponse.SC_NOT_FOUND, "No such endpoint");
+            return null;
+        }
+        // Browsers let any page open a WebSocket, so check where it came from.
+        final String origin = request.getHeader("Origin");
+        if(origin != null && !origin.endsWith("//" + request.getHeader("Host"))) {
+            refuse(response, HttpServletResponse.SC_FORBIDDEN, "Wrong origin");
+            return null;
+        }
+        for(HttpCookie cookie : request.getCookies()) {
+            if(!cookie.getName().equals("session"))
+                continue;
+            try {
+                final Stored<Session> session
+                    = inchat.restoreSession(UUID.fromString(cookie.getValue())).get();
+                return new ChannelSocket(inchat, session.value.account,
+                                         (channel, sequence) -> payloads.get(channel, sequence).text(),
+                                         executor, 64,
+                                         timer, heartbeatInterval);
+            } catch (IllegalArgumentException | Maybe.NothingException e) {
+                // Not a valid session.
+            }
+        }
+        refuse(response, HttpServletResponse.SC_FORBIDDEN, "Not logged in");
+        return null;
+    }
+
+    /**
+     * Answer a WebSocket upgrade with an error.
+     */
+    private static void refuse(ServletUpgradeResponse response, int status, String message) {
+        try {
+            response.sendError(status, message);
+        } catch (IOException e) {
+            // The client is gone already.
+        }
+    }
+
+    /**
+     * Render the answer to a subscription as bytes.
+     */
+    private byte[] renderSubscription(Stored<Channel> channel, Maybe<Long> sequence) {
+        try (HtmlBuffer out = HtmlBuffer.acquire()) {
+            printSubscription(out, channel, sequence);
+            return out.toByteArray();
+        }
+    }
+
+    private static final Template subscriptionTop = Template.compile(
+          "{{0|raw}}\n"
+        + "{{1|raw}} {{2|raw}}\n");
+
+    /**
+     * Render the answer to a subscription. The first line is the
+     * new version, the second says whether the rest is the events
+     * to add after the given sequence number or the whole channel.
+     */
+    private void printSubscription(HtmlBuffer out,
+                                   Stored<Channel> channel,
+                                   Maybe<Long> sequence) {
+        final Maybe<List<Stored<Channel.Event>>> delta
+            = sequence.bind(seen -> inchat.getChannelDelta(channel, seen));
+        try {
+            final List<Stored<Channel.Event>> events = delta.get();
+            subscriptionTop.render(out, channel.version, "delta", channel.value.sequence);
+            events.reverse().forEach(printChange(out,channel));
+        } catch (Maybe.NothingException e) {
+            subscriptionTop.render(out, channel.version, "full", channel.value.sequence);
+            printChannelEvents(out,channel);
+        }
+    }
+
+    private static final Template eventsTop = Template.compile(
+          "<div id=\"chanevents\">\n");
+    private static final Template olderLink = Template.compile(
+          "<p><a class=\"older\" href=\"/channel/{{0|uri}}?before={{1|raw}}\">Load older messages</a></p>\n");
+    private static final Template eventsBottom = Template.compile(
+          "</div>\n");
+
     /**
      * Render the events of a channel as HTML.
      */
-    private void printChannelEvents(PrintWriter out,
+    private void printChannelEvents(HtmlBuffer out,
                               Stored<Channel> channel) {
-        out.println("<div id=\"chanevents\">");
+        eventsTop.render(out);
+        // Link to the page preceding the oldest event shown.
+        if(channel.value.older) {
+            channel.value.events.last.forEach(oldest ->
+                olderLink.render(out, channel.value.name, oldest.identity));
+        }
         channel.value
                .events
                .reverse()
                .forEach(printEvent(out,channel));
-        out.println("</div>");  
+        eventsBottom.render(out);
     }
     
     /**
      * Render an event as HTML.
      */
-    private Consumer<Stored<Channel.Event>> printEvent(PrintWriter out, Stored<Channel> channel) {
-        String encChannelName = Encode.forHtml(channel.value.name);
+    private Consumer<Stored<Channel.Event>> printEvent(HtmlBuffer out, Stored<Channel> channel) {
+        return (e -> {
+            if(e.value.type != Channel.Event.Type.message
+               && e.value.type != Channel.Event.Type.join) {
+                // Edits and deletions are shown in their targets.
+                return;
+            }
+            // An event only changes by getting a new version, and the
+            // channel name is part of its forms.
+            final String key = e.identity + "/" + e.version + "/" + channel.value.name;
+            final Maybe<byte[]> cached = fragments.get(key);
+            try {
+                out.write(cached.get());
+            } catch (Maybe.NothingException nothing) {
+                final int start = out.size();
+                renderEvent(out, e, channel.value.name);
+                fragments.put(key, out.copyFrom(start));
+            }
+        });
+    }
+
+    /**
+     * Describe how often rendered events are found in the cache.
+     */
+    private String fragmentHitRate() {
+        final long hits = fragments.hits();
+        final long lookups = hits + fragments.misses();
+        return hits + " of " + lookups + " lookups hit ("
+             + (lookups == 0 ? 0 : 100 * hits / lookups) + "%), "
+             + fragments.weight() + " bytes cached.";
+    }
+
+    private static final Template messageEvent = Template.compile(
+          "<div class=\"entry\" id=\"event-{{0|raw}}\">\n"
+        + "    <div class=\"user\">{{1}}</div>\n"
+        + "    <div class=\"text\">{{2}}\n"
+        + "    </div>\n"
+        + "    <div class=\"messagecontrols\">\n"
+        + "        <form style=\"grid-area: delete;\" action=\"/channel/{{3}}\" method=\"POST\">\n"
+        + "        <input type=\"hidden\" name=\"message\" value=\"{{0|raw}}\">\n"
+        + "        <input type=\"submit\" name=\"deletemessage\" value=\"Delete\">\n"
+        + "        </form><form style=\"grid-area: edit;\" action=\"/editMessage\" method=\"POST\">\n"
+        + "        \n"
+        + "        <input type=\"hidden\" name=\"message\" value=\"{{0|raw}}\">\n"
+        + "        <input type=\"hidden\" name=\"channelname\" value=\"{{3}}\">\n"
+        + "        <input type=\"hidden\" name=\"originalcontent\" value=\"{{2}}\">\n"
+        + "        <input type=\"submit\" name=\"editmessage\" value=\"Edit\">\n"
+        + "        </form>\n"
+        + "    </div>\n"
+        + "</div>\n");
+    private static final Template joinEvent = Template.compile(
+          "<p id=\"event-{{0|raw}}\">{{1}} {{2}} has joined!</p>\n");
+
+    /**
+     * Render a message or join event as an HTML fragment.
+     */
+    private void renderEvent(HtmlBuffer out, Stored<Channel.Event> e, String channelName) {
+        switch(e.value.type) {
+            case message:
+                messageEvent.render(out, e.identity, e.value.sender, e.value.message, channelName);
+                return;
+            case join:
+                joinEvent.render(out, e.identity, formatter.format(e.value.time), e.value.sender);
+                return;
+            default:
+                return;
+        }
+    }
+
+    private static final Template deletedEvent = Template.compile(
+          "<div class=\"deleted\" data-target=\"event-{{0|raw}}\" hidden></div>\n");
+
+    /**
+     * Render an event for a client which already shows the
+     * events before it. An edit is sent as the new version of
+     * its target, which replaces the one with the same id, and
+     * a deletion as a marker naming the element to remove. The
+     * delta only has edits of events in the window of the channel.
+     */
+    private Consumer<Stored<Channel.Event>> printChange(HtmlBuffer out, Stored<Channel> channel) {
+        final Consumer<Stored<Channel.Event>> printer = printEvent(out, channel);
         return (e -> {
             switch(e.value.type) {
-                case message:
-                    out.println("<div class=\"entry\">");
-                    out.println("    <div class=\"user\">" + Encode.forHtml(e.value.sender) + "</div>");
-                    out.println("    <div class=\"text\">" + Encode.forHtml(e.value.message));
-                    out.println("    </div>");
-                    out.println("    <div class=\"messagecontrols\">");
-                    out.println("        <form style=\"grid-area: delete;\" action=\"/channel/" + encChannelName + "\" method=\"POST\">");
-                    out.println("        <input type=\"hidden\" name=\"message\" value=\""+ e.identity + "\">");
-                    out.println("        <input type=\"submit\" name=\"deletemessage\" value=\"Delete\">");
-                    out.println("        </form><form style=\"grid-area: edit;\" action=\"/editMessage\" method=\"POST\">");
-                    out.println("        ");
-                    out.println("        <input type=\"hidden\" name=\"message\" value=\""+ e.identity + "\">");
-                    out.println("        <input type=\"hidden\" name=\"channelname\" value=\""+ encChannelName + "\">");
-                    out.println("        <input type=\"hidden\" name=\"originalcontent\" value=\""+ Encode.forHtml(e.value.message) + "\">");
-                    out.println("        <input type=\"submit\" name=\"editmessage\" value=\"Edit\">");
-                    out.println("        </form>");
-                    out.println("    </div>");
-                    out.println("</div>");
+                case edit:
+                    channel.value.events.forEach(target -> {
+                        if(target.identity.equals(e.value.target))
+                            printer.accept(target);
+                    });
                     return;
-                case join:
-                    out.println("<p>" + formatter.format(e.value.time) + " " + Encode.forHtml(e.value.sender) + " has joined!</p>");
+                case delete:
+                    deletedEvent.render(out, e.value.target);
                     return;
+                default:
+                    printer.accept(e);
             }
         });
     }
 
+  /**
+   * The ETag of a channel page, which changes with the version
+   * of the channel, the version of the account showing it, and
+   * when the server restarts with possibly different templates.
+   */
+  private static String channelEtag(UUID channelVersion, Stored<Account> account) {
+    return "\"" + renderEpoch + "-" + channelVersion + "-" + account.version + "\"";
+  }
+
+  /**
+   * Whether an If-None-Match header names an ETag.
+   */
+  private static boolean etagMatches(String ifNoneMatch, String etag) {
+    for(String tag : ifNoneMatch.split(",")) {
+      final String t = tag.trim();
+      if(t.equals("*") || t.equals(etag))
+        return true;
+    }
+    return false;
+  }
+
   /**
    * Load all the cookies into a map for easy retrieval.
    */
@@ -548,18 +920,41 @@ public class Handler extends AbstractHandler
   }
 
   /**
-   * Serve a static file from file system.
+   * Serve a static file from memory. Clients which have the
+   * current version get 304 Not Modified, and clients which
+   * accept gzip get it compressed.
    */
-  private void serveFile(HttpServletResponse response, File file, String contentType) {
-      response.setContentType(contentType);
+  private void serveAsset(HttpServletRequest request,
+                          HttpServletResponse response,
+                          String name) throws IOException {
+      final StaticAssets.Asset asset;
       try {
-        final InputStream is = new FileInputStream(file);
-        is.transferTo(response.getOutputStream());
-        is.close();
-        response.setStatus(HttpServletResponse.SC_OK);
-      } catch (IOException e) {
-        response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+          asset = assets.get(name).get();
+      } catch (Maybe.NothingException e) {
+          response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+          return;
       }
+      final boolean gzip
+          = new Maybe<String>(request.getHeader("Accept-Encoding"))
+                .map(accepted -> accepted.contains("gzip")).defaultValue(false);
+      final Maybe<ByteBuffer> compressed
+          = gzip ? asset.compressed() : Maybe.nothing();
+      response.setContentType(asset.contentType);
+      response.setHeader("Cache-Control", asset.cacheControl);
+      response.setHeader("Vary", "Accept-Encoding");
+      response.setHeader("ETag", asset.etag(gzip));
+      final String ifNoneMatch = request.getHeader("If-None-Match");
+      if(ifNoneMatch != null && asset.matches(ifNoneMatch, gzip)) {
+          response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+          return;
+      }
+      if(!compressed.isNothing())
+          response.setHeader("Content-Encoding", "gzip");
+      final ByteBuffer contents = compressed.defaultValue(asset.plain());
+      response.setStatus(HttpServletResponse.SC_OK);
+      response.setContentLength(contents.remaining());
+      // The buffer is written to the connection as it is.
+      Request.getBaseRequest(request).getResponse().getHttpOutput().sendContent(contents);
   }
 
   /**
@@ -570,48 +965,91 @@ public class Handler extends AbstractHandler
   
     final String path = "production.db";
     final String dburl = "jdbc:sqlite:" + path;
-    final Connection connection = DriverManager.getConnection(dburl);
+    final Database database
+        = Database.open(dburl, Runtime.getRuntime().availableProcessors());
+    // Runs the WebSocket heartbeats and the coalesced notifications,
+    // and logs the subscriptions.
+    final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
     try{
-        connection.createStatement().executeUpdate("PRAGMA foreign_keys = ON");
         UserStorage userStore
-            = new UserStorage(connection);
+            = new UserStorage(database);
         ChannelStorage channelStore
-            = new ChannelStorage(connection);
+            = new ChannelStorage(database, 100, timer, coalesceWindow);
+        // Channels are weighed by the number of events loaded with them.
+        CachedStorage<Channel,SQLException> channelCache
+            = new CachedStorage<Channel,SQLException>(channelStore, database, 100000,
+                                                      c -> 1 + c.value.events.length);
+        CachedStorage<User,SQLException> userCache
+            = new CachedStorage<User,SQLException>(userStore, database, 10000, u -> 1);
         AccountStorage accountStore
-            = new AccountStorage(connection,userStore,channelStore);
+            = new AccountStorage(database,userCache,channelCache);
         SessionStorage sessionStore
-            = new SessionStorage(connection,accountStore);
-        inchat = new InChat(userStore,channelStore,
-                            accountStore,sessionStore,connection);
-        connection.setAutoCommit(false);
+            = new SessionStorage(database,accountStore);
+        inchat = new InChat(userCache,channelCache,channelStore,
+                            accountStore,sessionStore,database);
         try {
             final Stored<Session> admin = inchat.register("admin","pa$$w0rd").get();
             final Stored<Channel> debug = inchat.createChannel(admin.value.account, "debug").get();
             (new Thread(){ public void run() {
                 Mutable<Stored<Channel>> chan = new Mutable<Stored<Channel>>(debug);
                 while(true) {
-                    inchat.waitNextChannelVersion(chan.get().identity, chan.get().version).forEach(chan);
+                    final Maybe<Stored<Channel>> next
+                        = inchat.waitNextChannelVersion(chan.get().identity, chan.get().version, subscribeTimeout);
+                    if(next.isNothing())
+                        continue;
+                    next.forEach(chan);
                     chan.get().value.events.head().forEach( e -> {
-                        try {
+                        try (Database.Scope scope = database.write()) {
                         if(e.value.message != null) {
-                            ResultSet rs = connection.createStatement().executeQuery(e.value.message);
-                            if (rs.next()) {
-                                inchat.postMessage(admin.value.account,chan.get(),rs.getString(1)).forEach(chan);
+                            try (Statement statement = scope.connection.createStatement();
+                                 ResultSet rs = statement.executeQuery(e.value.message)) {
+                                if (rs.next()) {
+                                    inchat.postMessage(admin.value.account,chan.get(),rs.getString(1)).forEach(chan);
+                                }
                             }
                         }
+                        scope.commit();
                         } catch(Exception re) {}});
                 }
             } }).start();
         } catch (Exception e) {
         }
         Server server = new Server(8080);
-        server.setHandler(new Handler());
+        // Suspended subscriptions are resumed on the threads of this context.
+        final ContextHandler context = new ContextHandler("/");
+        final StaticAssets assets = new StaticAssets(Paths.get("."));
+        final String revalidate = "max-age=" + assetMaxAge;
+        assets.add("style.css", "text/css;charset=utf-8", revalidate);
+        assets.add("script.js", "application/javascript", revalidate);
+        // Pages are checked every time, so they never get out of step.
+        assets.add("login.html", "text/html;charset=utf-8", "no-cache");
+        assets.add("register.html", "text/html;charset=utf-8", "no-cache");
+        assets.add("index.html", "text/html;charset=utf-8", "no-cache");
+        if(reloadAssets)
+            assets.watch();
+        final Handler handler = new Handler(assets);
+        timer.scheduleAtFixedRate(() -> {
+            System.err.println("Subscriptions: " + inchat.liveSubscriptions() + " live, "
+                               + inchat.cancelledSubscriptions() + " cancelled.");
+            System.err.println("Event fragments: " + handler.fragmentHitRate());
+        }, 1, 1, TimeUnit.MINUTES);
+        // WebSocket upgrades are taken here, other requests go to the handler.
+        final WebSocketHandler sockets = new WebSocketHandler() {
+            @Override
+            public void configure(WebSocketServletFactory factory) {
+                factory.setCreator((request, response) ->
+                    handler.createSocket(request, response, server.getThreadPool(), timer));
+            }
+        };
+        sockets.setHandler(handler);
+        context.setHandler(sockets);
+        server.setHandler(context);
     
         server.start();
         server.join();
     } catch (SQLException e) {
        System.err.println("Inchat failed: " + e);
     }
-    connection.close();
+    database.close();
   }
 }
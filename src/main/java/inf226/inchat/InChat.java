@@ -6,13 +6,14 @@ import inf226.util.Maybe;
 import inf226.util.Util;
 
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.Map;
 import java.util.function.Consumer;
 import java.util.UUID;
 import java.time.Instant;
 import java.sql.SQLException;
-import java.sql.Connection;
 
 
 import inf226.util.immutable.List;
@@ -25,8 +26,11 @@ import inf226.util.immutable.List;
  **/
 
 public class InChat {
-    private final Connection connection;
-    private final UserStorage userStore;
+    private final Database database;
+    private final Storage<User,SQLException> userStore;
+    /* Where channels are looked up, usually through a cache. */
+    private final Storage<Channel,SQLException> channels;
+    /* The channels themselves, for appending and following them. */
     private final ChannelStorage channelStore;
     private final EventStorage eventStore;
     private final AccountStorage accountStore;
@@ -38,18 +42,33 @@ public class InChat {
                   ChannelStorage channelStore,
                   AccountStorage accountStore,
                   SessionStorage sessionStore,
-                  Connection connection) {
+                  Database database) {
+        this(userStore, channelStore, channelStore, accountStore, sessionStore, database);
+    }
+
+    /**
+     * Create a chat which looks up users and channels through
+     * the given storages, such as caches in front of the
+     * underlying ones.
+     */
+    public InChat(Storage<User,SQLException> userStore,
+                  Storage<Channel,SQLException> channels,
+                  ChannelStorage channelStore,
+                  AccountStorage accountStore,
+                  SessionStorage sessionStore,
+                  Database database) {
         this.userStore = userStore;
+        this.channels = channels;
         this.channelStore = channelStore;
         this.eventStore = channelStore.eventStore;
         this.accountStore = accountStore;
         this.sessionStore = sessionStore;
-        this.connection = connection;
+        this.database = database;
     }
 
 
     /**
-     * An atomic operation in Inchat.
+     * An operation in Inchat, run atomically or on a snapshot.
      * An operation has a function run(), which returns its
      * result through a consumer.
      */
@@ -60,27 +79,61 @@ public class InChat {
 
     /**
      * Execute an operation atomically in SQL.
-     * Wrapper method for commit() and rollback().
+     * The operation runs in a write scope of the database,
+     * which is committed if the operation succeeds and
+     * rolled back otherwise.
      */
     private <T> Maybe<T> atomic(Operation<T, SQLException> op) {
-        synchronized (connection) {
-            try {
-                Maybe.Builder<T> result = Maybe.builder();
-                op.run(result);
-                connection.commit();
-                return result.getMaybe();
-            } catch (SQLException e) {
-                System.err.println(e.toString());
-            } catch (DeletedException e) {
-                System.err.println(e.toString());
-            }
-            try {
-                connection.rollback();
-            } catch (SQLException e) {
-                System.err.println(e.toString());
-            }
-            return Maybe.nothing();
+        try (Database.Scope scope = database.write()) {
+            Maybe.Builder<T> result = Maybe.builder();
+            op.run(result);
+            scope.commit();
+            return result.getMaybe();
+        } catch (SQLException e) {
+            System.err.println(e.toString());
+        } catch (DeletedException e) {
+            System.err.println(e.toString());
+        }
+        return Maybe.nothing();
+    }
+
+    /**
+     * Execute a read-only query in SQL.
+     * The query runs on a consistent snapshot from the reader
+     * pool. It does not take the write lock, and nothing is
+     * committed: the snapshot is simply released afterwards.
+     * The query must not write to the database.
+     */
+    // The scope is only held for the snapshot it releases on close.
+    @SuppressWarnings("try")
+    private <T> Maybe<T> snapshot(Operation<T, SQLException> query) {
+        try (Database.Scope scope = database.read()) {
+            Maybe.Builder<T> result = Maybe.builder();
+            query.run(result);
+            return result.getMaybe();
+        } catch (SQLException e) {
+            System.err.println(e.toString());
+        } catch (DeletedException e) {
+            System.err.println(e.toString());
+        }
+        return Maybe.nothing();
+    }
+
+    /**
+     * Append an event to a channel. The append is a transaction
+     * of its own, so the channel is read back after it has been
+     * committed rather than while holding the writer lock.
+     */
+    private Maybe<Stored<Channel>> append(Stored<Channel> channel,
+                                          Channel.Event event) {
+        try {
+            return Maybe.just(channelStore.append(channel, event));
+        } catch (SQLException e) {
+            System.err.println(e.toString());
+        } catch (DeletedException e) {
+            System.err.println(e.toString());
         }
+        return Maybe.nothing();
     }
 
     /**
@@ -106,7 +159,7 @@ public class InChat {
                                            final String password) {
 
         return atomic(result -> {
-            if (validatePassword(username, password)) {
+            if (validatePassword(password, username)) {
                 final Stored<User> user =
                         userStore.save(User.create(username));
                 final Stored<Account> account =
@@ -123,7 +176,7 @@ public class InChat {
      * Restore a previous session.
      */
     public Maybe<Stored<Session>> restoreSession(UUID sessionId) {
-        return atomic(result ->
+        return snapshot(result ->
                 result.accept(sessionStore.get(sessionId))
         );
     }
@@ -145,7 +198,7 @@ public class InChat {
         roles.put(account.value.user.value.name.getUserName(), "owner");
         return atomic(result -> {
             Stored<Channel> channel
-                    = channelStore.save(new Channel(name, List.empty(), roles));
+                    = channels.save(new Channel(name, List.empty(), roles));
             joinChannel(account, channel.identity);
             result.accept(channel);
         });
@@ -157,16 +210,7 @@ public class InChat {
     public Maybe<Stored<Channel>> joinChannel(Stored<Account> account,
                                               UUID channelID) {
         return atomic(result -> {
-            Stored<Channel> channel = channelStore.get(channelID);
-            //quickfix sets user to participant if not already owner, banned or observer.
-            String currentRole = channel.value.roles.get(account.value.user.value.name.getUserName());
-            if (currentRole != null) {
-                if (!(currentRole.equals("owner") || currentRole.equals("banned") || currentRole.equals("observer"))) {
-                    channel.value.roles.put(account.value.user.value.name.getUserName(), "participant");
-                }
-            } else {
-                channel.value.roles.put(account.value.user.value.name.getUserName(), "participant");
-            }
+            Stored<Channel> channel = channels.get(channelID);
             Util.updateSingle(account,
                     accountStore,
                     a -> a.value.joinChannel(channel.value.name, channel));
@@ -178,10 +222,27 @@ public class InChat {
             result.accept(
                     Util.updateSingle(channel,
                             channelStore,
-                            c -> c.value.postEvent(joinEvent)));
+                            c -> joinRole(c, account).postEvent(joinEvent)));
         });
     }
 
+    /**
+     * The channel with the role of a joining account set.
+     * Channels may be shared between threads, so the roles
+     * are copied rather than changed in place.
+     */
+    private Channel joinRole(Stored<Channel> channel, Stored<Account> account) {
+        final String name = account.value.user.value.name.getUserName();
+        //quickfix sets user to participant if not already owner, banned or observer.
+        String currentRole = channel.value.roles.get(name);
+        if (currentRole != null) {
+            if (currentRole.equals("owner") || currentRole.equals("banned") || currentRole.equals("observer")) {
+                return channel.value;
+            }
+        }
+        return channel.value.setRole(name, "participant");
+    }
+
     /**
      * Post a message to a channel.
      * Permission handled in handler.
@@ -189,24 +250,36 @@ public class InChat {
     public Maybe<Stored<Channel>> postMessage(Stored<Account> account,
                                               Stored<Channel> channel,
                                               String message) {
-        return atomic(result -> {
-            Stored<Channel.Event> event
-                    = channelStore.eventStore.save(
-                    Channel.Event.createMessageEvent(channel.identity, Instant.now(),
-                            account.value.user.value.name.getUserName(), message));
-            result.accept(
-                    Util.updateSingle(channel,
-                            channelStore,
-                            c -> c.value.postEvent(event)));
-        });
+        return append(channel,
+                      Channel.Event.createMessageEvent(channel.identity, Instant.now(),
+                              account.value.user.value.name.getUserName(), message));
+    }
+
+    /**
+     * A blocking call which returns the next state of the channel,
+     * or nothing if there is none within the timeout in milliseconds.
+     */
+    public Maybe<Stored<Channel>> waitNextChannelVersion(UUID identity, UUID version, long timeout) {
+        try {
+            return channelStore.waitNextVersion(identity, version, timeout);
+        } catch (DeletedException e) {
+            return Maybe.nothing();
+        } catch (SQLException e) {
+            return Maybe.nothing();
+        }
     }
 
     /**
-     * A blocking call which returns the next state of the channel.
+     * Call back with the next state of the channel, without
+     * blocking. The callback runs on the thread committing the
+     * new state, and should hand real work over to another thread.
+     * @return Cancels the callback, or nothing if the channel
+     *         could not be found.
      */
-    public Maybe<Stored<Channel>> waitNextChannelVersion(UUID identity, UUID version) {
+    public Maybe<Runnable> onNextChannelVersion(UUID identity, UUID version,
+                                                Consumer<Stored<Channel>> callback) {
         try {
-            return Maybe.just(channelStore.waitNextVersion(identity, version));
+            return Maybe.just(channelStore.onNextVersion(identity, version, callback));
         } catch (DeletedException e) {
             return Maybe.nothing();
         } catch (SQLException e) {
@@ -214,11 +287,91 @@ public class InChat {
         }
     }
 
+    /**
+     * The number of subscriptions waiting for a channel to change.
+     */
+    public int liveSubscriptions() {
+        return channelStore.waiting();
+    }
+
+    /**
+     * The number of subscriptions cancelled before their channel
+     * changed. Most are long-polls which timed out, and which the
+     * client renews.
+     */
+    public long cancelledSubscriptions() {
+        return channelStore.cancelled();
+    }
+
+    /**
+     * Get the events a client which has seen the channel up to the
+     * given sequence number is missing, newest first. Gives nothing
+     * if the client should reload the whole channel instead: when the
+     * gap is larger than the window of the channel, when the
+     * log is missing some of the events, or when an edit changes
+     * an event which is no longer in the window, since the edit is
+     * sent as the new version of the event.
+     */
+    public Maybe<List<Stored<Channel.Event>>> getChannelDelta(Stored<Channel> channel, long sequence) {
+        final long missing = channel.value.sequence - sequence;
+        if (missing < 0 || missing > channelStore.window)
+            return Maybe.nothing();
+        final Set<UUID> shown = new HashSet<UUID>();
+        channel.value.events.forEach(e -> shown.add(e.identity));
+        final Maybe<List<Stored<Channel.Event>>> delta = snapshot(result ->
+                channelStore.eventsBetween(channel.identity, sequence, channel.value.sequence)
+                            .forEach(result)
+        );
+        return delta.bind(events ->
+            events.filter(e -> e.value.type == Channel.Event.Type.edit
+                               && !shown.contains(e.value.target)).length == 0
+                ? delta : Maybe.nothing());
+    }
+
+    /**
+     * Get the current state of a channel.
+     */
+    public Maybe<Stored<Channel>> getChannel(UUID channelID) {
+        return snapshot(result ->
+                result.accept(channels.get(channelID))
+        );
+    }
+
+    /**
+     * Get the sequence numbers of the channels an account has joined.
+     */
+    public Maybe<Map<UUID,Long>> getChannelSequences(Stored<Account> account) {
+        final java.util.List<UUID> ids = new java.util.ArrayList<UUID>();
+        account.value.channels.forEach(entry -> ids.add(entry.second.identity));
+        return snapshot(result ->
+                result.accept(channelStore.getCurrentSequences(ids))
+        );
+    }
+
+    /**
+     * Get a channel the account refers to.
+     */
+    public Maybe<Stored<Channel>> getChannel(Reference<Channel,SQLException> channel) {
+        return snapshot(result ->
+                result.accept(channel.resolve())
+        );
+    }
+
+    /**
+     * Get a channel with the window of events preceding the given
+     * event, for browsing the history of the channel.
+     */
+    public Maybe<Stored<Channel>> getChannelBefore(UUID channelID, UUID eventID) {
+        return snapshot(result ->
+                result.accept(channelStore.getBefore(channelID, eventID))
+        );
+    }
+
     /**
      * Get an event by its identity.
      */
     public Maybe<Stored<Channel.Event>> getEvent(UUID eventID) {
-        return atomic(result ->
+        return snapshot(result ->
                 result.accept(channelStore.eventStore.get(eventID))
         );
     }
@@ -227,6 +380,9 @@ public class InChat {
      * Delete an event.
      */
     public Stored<Channel> deleteEvent(Stored<Channel> channel, Stored<Channel.Event> event, Stored<Account> account) {
+        if (!event.value.channel.equals(channel.identity)) {
+            return channel;
+        }
         String role = getRole(account.value.user.value.name.getUserName(), channel);
         if (role.equals("owner") || role.equals("moderator")) {
         } else if (event.value.sender.equals(account.value.user.value.name.getUserName()) && role.equals("participant")) {
@@ -234,10 +390,10 @@ public class InChat {
             return channel;
         }
 
-        return this.<Stored<Channel>>atomic(result -> {
-            Util.deleteSingle(event, channelStore.eventStore);
-            result.accept(channelStore.noChangeUpdate(channel.identity));
-        }).defaultValue(channel);
+        return append(channel,
+                      Channel.Event.createDeleteEvent(channel.identity, Instant.now(),
+                              account.value.user.value.name.getUserName(), event.identity))
+            .defaultValue(channel);
     }
 
     /**
@@ -246,6 +402,10 @@ public class InChat {
     public Stored<Channel> editMessage(Stored<Channel> channel,
                                        Stored<Channel.Event> event,
                                        String newMessage, Stored<Account> account) {
+        if (!event.value.channel.equals(channel.identity)
+            || event.value.type != Channel.Event.Type.message) {
+            return channel;
+        }
         String role = getRole(account.value.user.value.name.getUserName(), channel);
         if (role.equals("owner") || role.equals("moderator")) {
         } else if (event.value.sender.equals(account.value.user.value.name.getUserName()) && role.equals("participant")) {
@@ -253,12 +413,10 @@ public class InChat {
             return channel;
         }
 
-        return this.<Stored<Channel>>atomic(result -> {
-            Util.updateSingle(event,
-                    channelStore.eventStore,
-                    e -> e.value.setMessage(newMessage));
-            result.accept(channelStore.noChangeUpdate(channel.identity));
-        }).defaultValue(channel);
+        return append(channel,
+                      Channel.Event.createEditEvent(channel.identity, Instant.now(),
+                              account.value.user.value.name.getUserName(), event.identity, newMessage))
+            .defaultValue(channel);
     }
 
     //fixme add atomic util.updateSingle here?
@@ -0,0 +1,159 @@
+package inf226.inchat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.zip.GZIPOutputStream;
+
+import inf226.storage.Stored;
+import inf226.util.Cache;
+import inf226.util.Maybe;
+
+/**
+ * Rendered answers to subscriptions, shared by every subscriber
+ * of the same version of a channel.
+ *
+ * An answer depends only on the version of the channel and
+ * the sequence number the subscriber has, so all subscribers
+ * woken by one version get the same bytes. They are rendered
+ * once, and compressed at most once.
+ */
+public final class PayloadCache {
+    /* Answers smaller than this are not worth compressing. */
+    public static final int minimumCompressed = 512;
+
+    private final BiFunction<Stored<Channel>,Maybe<Long>,byte[]> render;
+    public final Cache<String,Payload> cache;
+    // Renders in progress, so that subscribers woken together share one.
+    private final ConcurrentHashMap<String,CompletableFuture<Payload>> rendering
+        = new ConcurrentHashMap<String,CompletableFuture<Payload>>();
+
+    /**
+     * Create a payload cache.
+     *
+     * @param render   Renders a channel after a sequence number,
+     *                 into an array which is not used elsewhere.
+     * @param capacity The total size of the cached answers, in bytes.
+     */
+    public PayloadCache(BiFunction<Stored<Channel>,Maybe<Long>,byte[]> render,
+                        long capacity) {
+        this.render = render;
+        this.cache = new Cache<String,Payload>(capacity, Payload::size);
+    }
+
+    /**
+     * Get the answer for a subscriber who has a channel up to
+     * the given sequence number, rendering it if no one has.
+     */
+    public Payload get(Stored<Channel> channel, Maybe<Long> sequence) {
+        final String key = channel.identity + "/" + channel.version + "/"
+                         + sequence.map(String::valueOf).defaultValue("full");
+        final Payload cached = cache.get(key).defaultValue(null);
+        if (cached != null)
+            return cached;
+        final CompletableFuture<Payload> mine = new CompletableFuture<Payload>();
+        final CompletableFuture<Payload> other = rendering.putIfAbsent(key, mine);
+        if (other != null) {
+            try {
+                return other.join();
+            } catch (CompletionException e) {
+                // The other render failed, try for ourselves.
+                return new Payload(render.apply(channel, sequence));
+            }
+        }
+        try {
+            final Payload payload = new Payload(render.apply(channel, sequence));
+            cache.put(key, payload);
+            mine.complete(payload);
+            return payload;
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            rendering.remove(key, mine);
+        }
+    }
+
+    /**
+     * A rendered answer. The bytes are never changed, or handed
+     * out, so the same payload can be written to any number
+     * of responses at the same time.
+     */
+    public static final class Payload {
+        private final byte[] plain;
+        // Compressed on first demand.
+        private byte[] compressed = null;
+
+        public Payload(String text) {
+            this(text.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Take over an array of UTF-8 encoded text.
+         */
+        public Payload(byte[] plain) {
+            this.plain = plain;
+        }
+
+        /**
+         * The size of the answer in bytes, uncompressed.
+         */
+        public int size() {
+            return plain.length;
+        }
+
+        /**
+         * The answer as text, for WebSocket frames.
+         */
+        public String text() {
+            return new String(plain, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Whether the answer is large enough to be compressed.
+         */
+        public boolean compressible() {
+            return plain.length >= minimumCompressed;
+        }
+
+        /**
+         * Write the answer as it is.
+         */
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(plain);
+        }
+
+        /**
+         * Write the answer compressed with gzip.
+         */
+        public void writeCompressedTo(OutputStream out) throws IOException {
+            out.write(compressed());
+        }
+
+        /**
+         * The size of the answer in bytes, compressed.
+         */
+        public int compressedSize() {
+            return compressed().length;
+        }
+
+        private synchronized byte[] compressed() {
+            if (compressed == null) {
+                final ByteArrayOutputStream buffer = new ByteArrayOutputStream(plain.length / 4);
+                try (GZIPOutputStream gzip = new GZIPOutputStream(buffer)) {
+                    gzip.write(plain);
+                } catch (IOException e) {
+                    // Writing to memory does not fail.
+                    throw new RuntimeException(e);
+                }
+                compressed = buffer.toByteArray();
+            }
+            return compressed;
+        }
+    }
+}
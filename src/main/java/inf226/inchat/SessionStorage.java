@@ -2,9 +2,16 @@ package inf226.inchat;
 
 import java.sql.*;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import inf226.storage.*;
+import inf226.util.Maybe;
 
 /**
  * The SessionStorage stores Session objects in a SQL database.
@@ -12,16 +19,19 @@ import inf226.storage.*;
 public final class SessionStorage
     implements Storage<Session,SQLException> {
     
-    final Connection connection;
+    final Database database;
     final Storage<Account,SQLException> accountStorage;
     
-    public SessionStorage(Connection connection,
+    public SessionStorage(Database database,
                           Storage<Account,SQLException> accountStorage)
       throws SQLException {
-        this.connection = connection;
+        this.database = database;
         this.accountStorage = accountStorage;
-        connection.createStatement()
-                .executeUpdate("CREATE TABLE IF NOT EXISTS Session (id TEXT PRIMARY KEY, version TEXT, account TEXT, expiry TEXT, FOREIGN KEY(account) REFERENCES Account(id) ON DELETE CASCADE)");
+        try (Database.Scope scope = database.write();
+             Statement statement = scope.connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS Session (id TEXT PRIMARY KEY, version TEXT, account TEXT, expiry TEXT, FOREIGN KEY(account) REFERENCES Account(id) ON DELETE CASCADE)");
+            scope.commit();
+        }
     }
     
     @Override
@@ -30,13 +40,16 @@ public final class SessionStorage
         
         final Stored<Session> stored = new Stored<Session>(session);
 
-        String sql = "INSERT INTO Session VALUES(?,?,?,?)";
-        PreparedStatement preparedStatement = connection.prepareStatement(sql);
-        preparedStatement.setObject(1,stored.identity);
-        preparedStatement.setObject(2, stored.version);
-        preparedStatement.setObject(3, session.account.identity);
-        preparedStatement.setString(4, session.expiry.toString());
-        preparedStatement.executeUpdate();
+        try (Database.Scope scope = database.write()) {
+            String sql = "INSERT INTO Session VALUES(?,?,?,?)";
+            PreparedStatement preparedStatement = scope.prepare(sql);
+            preparedStatement.setObject(1,stored.identity);
+            preparedStatement.setObject(2, stored.version);
+            preparedStatement.setObject(3, session.account.identity);
+            preparedStatement.setString(4, session.expiry.toString());
+            preparedStatement.executeUpdate();
+            scope.commit();
+        }
 
         return stored;
     }
@@ -47,20 +60,22 @@ public final class SessionStorage
         throws UpdatedException,
             DeletedException,
             SQLException {
-    final Stored<Session> current = get(session.identity);
-    final Stored<Session> updated = current.newVersion(new_session);
-    if(current.version.equals(session.version)) {
-        String sql = "UPDATE Session SET(?,?,?) WHERE id= ?";
-        PreparedStatement preparedStatement = connection.prepareStatement(sql);
-        preparedStatement.setObject(1,updated.version);
-        preparedStatement.setObject(2, new_session.account.identity);
-        preparedStatement.setObject(3, new_session.expiry.toString());
-        preparedStatement.setObject(4, updated.identity);
-        preparedStatement.executeUpdate();
-    } else {
-        throw new UpdatedException(current);
+    try (Database.Scope scope = database.write()) {
+        final Stored<Session> updated = session.newVersion(new_session);
+        String sql = "UPDATE Session SET (version,account,expiry) = (?,?,?) WHERE id = ? AND version = ?";
+        PreparedStatement preparedStatement = scope.prepare(sql);
+        preparedStatement.setString(1, updated.version.toString());
+        preparedStatement.setString(2, new_session.account.identity.toString());
+        preparedStatement.setString(3, new_session.expiry.toString());
+        preparedStatement.setString(4, session.identity.toString());
+        preparedStatement.setString(5, session.version.toString());
+        if(preparedStatement.executeUpdate() == 0) {
+            // Changed or deleted by someone else
+            throw new UpdatedException(get(session.identity));
+        }
+        scope.commit();
+        return updated;
     }
-    return updated;
     }
    
     @Override
@@ -68,34 +83,64 @@ public final class SessionStorage
        throws UpdatedException,
               DeletedException,
               SQLException {
-        final Stored<Session> current = get(session.identity);
-        if(current.version.equals(session.version)) {
-        String sql =  "DELETE FROM Session WHERE id ='" + session.identity + "'";
-        connection.createStatement().executeUpdate(sql);
-        } else {
-        throw new UpdatedException(current);
+        try (Database.Scope scope = database.write()) {
+            final PreparedStatement statement = scope.prepare("DELETE FROM Session WHERE id = ? AND version = ?");
+            statement.setString(1, session.identity.toString());
+            statement.setString(2, session.version.toString());
+            if(statement.executeUpdate() == 0) {
+                throw new UpdatedException(get(session.identity));
+            }
+            scope.commit();
         }
     }
     @Override
     public Stored<Session> get(UUID id)
       throws DeletedException,
              SQLException {
-        final String sql = "SELECT version,account,expiry FROM Session WHERE id = '" + id.toString() + "'";
-        final Statement statement = connection.createStatement();
-        final ResultSet rs = statement.executeQuery(sql);
-
-        if(rs.next()) {
-            final UUID version = UUID.fromString(rs.getString("version"));
-            final Stored<Account> account
-               = accountStorage.get(
-                    UUID.fromString(rs.getString("account")));
-            final Instant expiry = Instant.parse(rs.getString("expiry"));
-            return (new Stored<Session>
-                        (new Session(account,expiry),id,version));
-        } else {
+        try {
+            return getAll(Collections.singletonList(id)).get(0).get();
+        } catch (Maybe.NothingException e) {
             throw new DeletedException();
         }
     }
+
+    /**
+     * Get several sessions, with their accounts fetched
+     * as one batch.
+     */
+    @Override
+    public List<Maybe<Stored<Session>>> getAll(Collection<UUID> ids)
+      throws SQLException {
+        final Map<UUID,Stored<Session>> found = new HashMap<UUID,Stored<Session>>();
+        try (Database.Scope scope = database.read()) {
+            for (List<UUID> chunk : Database.chunks(ids)) {
+                final ArrayList<UUID> sessionIds = new ArrayList<UUID>();
+                final ArrayList<UUID> versions = new ArrayList<UUID>();
+                final ArrayList<UUID> accountIds = new ArrayList<UUID>();
+                final ArrayList<Instant> expiries = new ArrayList<Instant>();
+                final PreparedStatement statement
+                    = scope.prepareIn("SELECT id,version,account,expiry FROM Session WHERE id IN (?)", chunk);
+                try (ResultSet rs = statement.executeQuery()) {
+                    while(rs.next()) {
+                        sessionIds.add(UUID.fromString(rs.getString("id")));
+                        versions.add(UUID.fromString(rs.getString("version")));
+                        accountIds.add(UUID.fromString(rs.getString("account")));
+                        expiries.add(Instant.parse(rs.getString("expiry")));
+                    }
+                }
+                final List<Maybe<Stored<Account>>> accounts = accountStorage.getAll(accountIds);
+                for (int i = 0; i < sessionIds.size(); ++i) {
+                    final int row = i;
+                    accounts.get(i).forEach(account ->
+                        found.put(sessionIds.get(row), new Stored<Session>
+                                    (new Session(account,expiries.get(row)),
+                                     sessionIds.get(row),
+                                     versions.get(row))));
+                }
+            }
+        }
+        return Storage.inOrder(ids, found);
+    }
     
     
 } 
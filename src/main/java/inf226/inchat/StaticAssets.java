@@ -0,0 +1,217 @@
+package inf226.inchat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+
+import inf226.util.Maybe;
+
+/**
+ * Static files served from memory.
+ *
+ * Each file is read once into a read-only direct buffer, which
+ * can be written to any number of responses without copying.
+ * It gets a strong ETag from a hash of its contents, and a
+ * gzipped copy if that is smaller.
+ *
+ * In development the directory can be watched, and files are
+ * loaded again when they change.
+ */
+public final class StaticAssets {
+    private final Path directory;
+    // The registered files, by name.
+    private final ConcurrentHashMap<String,Spec> specs
+        = new ConcurrentHashMap<String,Spec>();
+    // The loaded files, by name. Files which failed to load are missing.
+    private final ConcurrentHashMap<String,Asset> assets
+        = new ConcurrentHashMap<String,Asset>();
+
+    /**
+     * Serve files from a directory.
+     */
+    public StaticAssets(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Register a file and load it.
+     * @param name         The name of the file in the directory.
+     * @param contentType  The Content-Type to serve it with.
+     * @param cacheControl The Cache-Control to serve it with.
+     */
+    public void add(String name, String contentType, String cacheControl) {
+        specs.put(name, new Spec(contentType, cacheControl));
+        reload(name);
+    }
+
+    /**
+     * Get a loaded file by name.
+     */
+    public Maybe<Asset> get(String name) {
+        return new Maybe<Asset>(assets.get(name));
+    }
+
+    /**
+     * Load a registered file again. If it cannot be read
+     * it is not served until it can.
+     */
+    public void reload(String name) {
+        final Spec spec = specs.get(name);
+        if (spec == null)
+            return;
+        try {
+            assets.put(name, new Asset(Files.readAllBytes(directory.resolve(name)),
+                                       spec.contentType, spec.cacheControl));
+        } catch (IOException e) {
+            System.err.println("Could not load " + name + ": " + e);
+            assets.remove(name);
+        }
+    }
+
+    /**
+     * Reload files when they change, from a daemon thread.
+     */
+    public void watch() throws IOException {
+        final WatchService watcher = FileSystems.getDefault().newWatchService();
+        directory.register(watcher,
+                           StandardWatchEventKinds.ENTRY_CREATE,
+                           StandardWatchEventKinds.ENTRY_MODIFY);
+        final Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    final WatchKey key = watcher.take();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.context() instanceof Path) {
+                            final String name = ((Path)event.context()).getFileName().toString();
+                            if (specs.containsKey(name)) {
+                                System.err.println("Reloading " + name + ".");
+                                reload(name);
+                            }
+                        }
+                    }
+                    if (!key.reset())
+                        return;
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // Stop watching.
+            }
+        }, "asset-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static final class Spec {
+        final String contentType;
+        final String cacheControl;
+
+        Spec(String contentType, String cacheControl) {
+            this.contentType = contentType;
+            this.cacheControl = cacheControl;
+        }
+    }
+
+    /**
+     * A loaded file. The buffers are read-only, and handed out
+     * as duplicates so that responses do not share positions.
+     */
+    public static final class Asset {
+        public final String contentType;
+        public final String cacheControl;
+        /* The ETag of the file as it is. */
+        public final String etag;
+        /* The ETag of the gzipped file. */
+        public final String compressedEtag;
+        private final ByteBuffer plain;
+        // Null if compressing does not make it smaller.
+        private final ByteBuffer compressed;
+
+        public Asset(byte[] contents, String contentType, String cacheControl) {
+            this.contentType = contentType;
+            this.cacheControl = cacheControl;
+            final String hash = hash(contents);
+            this.etag = "\"" + hash + "\"";
+            this.compressedEtag = "\"" + hash + "-gzip\"";
+            this.plain = direct(contents);
+            final byte[] gzipped = gzip(contents);
+            this.compressed = gzipped.length < contents.length ? direct(gzipped) : null;
+        }
+
+        /**
+         * The contents of the file.
+         */
+        public ByteBuffer plain() {
+            return plain.duplicate();
+        }
+
+        /**
+         * The gzipped contents of the file, if smaller.
+         */
+        public Maybe<ByteBuffer> compressed() {
+            return new Maybe<ByteBuffer>(compressed).map(ByteBuffer::duplicate);
+        }
+
+        /**
+         * The ETag of what is served to a client, depending on
+         * whether it accepts gzip.
+         */
+        public String etag(boolean gzip) {
+            return gzip && compressed != null ? compressedEtag : etag;
+        }
+
+        /**
+         * Whether an If-None-Match header names this version of
+         * the file, in the encoding served to the client.
+         */
+        public boolean matches(String ifNoneMatch, boolean gzip) {
+            final String served = etag(gzip);
+            for (String tag : ifNoneMatch.split(",")) {
+                final String t = tag.trim();
+                if (t.equals("*") || t.equals(served))
+                    return true;
+            }
+            return false;
+        }
+
+        private static ByteBuffer direct(byte[] contents) {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(contents.length);
+            buffer.put(contents).flip();
+            return buffer.asReadOnlyBuffer();
+        }
+
+        private static byte[] gzip(byte[] contents) {
+            final ByteArrayOutputStream buffer = new ByteArrayOutputStream(contents.length / 2);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(buffer)) {
+                gzip.write(contents);
+            } catch (IOException e) {
+                // Writing to memory does not fail.
+                throw new RuntimeException(e);
+            }
+            return buffer.toByteArray();
+        }
+
+        private static String hash(byte[] contents) {
+            try {
+                final byte[] digest = MessageDigest.getInstance("SHA-256").digest(contents);
+                final StringBuilder hex = new StringBuilder();
+                for (int i = 0; i < 16; ++i)
+                    hex.append(String.format("%02x", digest[i]));
+                return hex.toString();
+            } catch (NoSuchAlgorithmException e) {
+                // Every Java platform has SHA-256.
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
@@ -2,6 +2,12 @@ package inf226.inchat;
 
 import java.sql.*;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import inf226.storage.*;
@@ -15,30 +21,46 @@ import inf226.util.*;
 public final class UserStorage
     implements Storage<User,SQLException> {
     
-    final Connection connection;
+    final Database database;
     
-    public UserStorage(Connection connection) 
+    public UserStorage(Database database) 
       throws SQLException {
-        this.connection = connection;
-        connection.createStatement()
-                .executeUpdate("CREATE TABLE IF NOT EXISTS User (id TEXT PRIMARY KEY, version TEXT, name TEXT, joined TEXT)");
+        this.database = database;
+        try (Database.Scope scope = database.write();
+             Statement statement = scope.connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS User (id TEXT PRIMARY KEY, version TEXT, name TEXT, joined TEXT)");
+            scope.commit();
+        }
     }
     
     @Override
     public Stored<User> save(User user)
       throws SQLException {
-        final Stored<User> stored = new Stored<User>(user);
-
-        String sql = "INSERT INTO User VALUES(?,?,?,?)";
-        PreparedStatement preparedStatement = connection.prepareStatement(sql);
-        preparedStatement.setObject(1,stored.identity);
-        preparedStatement.setObject(2, stored.version);
-        preparedStatement.setString(3, user.name.getUserName());
-        preparedStatement.setString(4, user.joined.toString());
-        preparedStatement.executeUpdate();
-
+        return saveAll(Collections.singletonList(user)).get(0);
+    }
 
-        connection.createStatement().executeUpdate(sql);
+    /**
+     * Save several users in one transaction, as one batch.
+     */
+    @Override
+    public List<Stored<User>> saveAll(Collection<User> users)
+      throws SQLException {
+        final List<Stored<User>> stored = new ArrayList<Stored<User>>(users.size());
+        try (Database.Scope scope = database.write()) {
+            String sql = "INSERT INTO User VALUES(?,?,?,?)";
+            PreparedStatement preparedStatement = scope.prepare(sql);
+            for (User user : users) {
+                final Stored<User> saved = new Stored<User>(user);
+                preparedStatement.setObject(1,saved.identity);
+                preparedStatement.setObject(2, saved.version);
+                preparedStatement.setString(3, user.name.getUserName());
+                preparedStatement.setString(4, user.joined.toString());
+                preparedStatement.addBatch();
+                stored.add(saved);
+            }
+            preparedStatement.executeBatch();
+            scope.commit();
+        }
         return stored;
     }
     
@@ -48,22 +70,22 @@ public final class UserStorage
         throws UpdatedException,
             DeletedException,
             SQLException {
-        final Stored<User> current = get(user.identity);
-        final Stored<User> updated = current.newVersion(new_user);
-        if(current.version.equals(user.version)) {
-
-            final String sql = "UPDATE User SET (?,?,?) WHERE id=?";
-            PreparedStatement preparedStatement = connection.prepareStatement(sql);
-            preparedStatement.setObject(1,updated.version);
-            preparedStatement.setObject(2, new_user.name);
-            preparedStatement.setObject(3, new_user.joined.toString());
-            preparedStatement.setObject(4, updated.identity);
-            preparedStatement.executeUpdate();
-
-        } else {
-            throw new UpdatedException(current);
+        try (Database.Scope scope = database.write()) {
+            final Stored<User> updated = user.newVersion(new_user);
+            final String sql = "UPDATE User SET (version,name,joined) = (?,?,?) WHERE id = ? AND version = ?";
+            PreparedStatement preparedStatement = scope.prepare(sql);
+            preparedStatement.setString(1, updated.version.toString());
+            preparedStatement.setString(2, new_user.name.getUserName());
+            preparedStatement.setString(3, new_user.joined.toString());
+            preparedStatement.setString(4, user.identity.toString());
+            preparedStatement.setString(5, user.version.toString());
+            if(preparedStatement.executeUpdate() == 0) {
+                // Changed or deleted by someone else
+                throw new UpdatedException(get(user.identity));
+            }
+            scope.commit();
+            return updated;
         }
-        return updated;
     }
    
     @Override
@@ -71,32 +93,80 @@ public final class UserStorage
        throws UpdatedException,
               DeletedException,
               SQLException {
-        final Stored<User> current = get(user.identity);
-        if(current.version.equals(user.version)) {
-            String sql =  "DELETE FROM User WHERE id ='" + user.identity + "'";
-            connection.createStatement().executeUpdate(sql);
-        } else {
-        throw new UpdatedException(current);
+        try (Database.Scope scope = database.write()) {
+            final PreparedStatement statement = scope.prepare("DELETE FROM User WHERE id = ? AND version = ?");
+            statement.setString(1, user.identity.toString());
+            statement.setString(2, user.version.toString());
+            if(statement.executeUpdate() == 0) {
+                throw new UpdatedException(get(user.identity));
+            }
+            scope.commit();
         }
     }
     @Override
     public Stored<User> get(UUID id)
       throws DeletedException,
              SQLException {
-        final String sql = "SELECT version,name,joined FROM User WHERE id = '" + id.toString() + "'";
-        final Statement statement = connection.createStatement();
-        final ResultSet rs = statement.executeQuery(sql);
+        try (Database.Scope scope = database.read()) {
+            final PreparedStatement statement = scope.prepare("SELECT id,version,name,joined FROM User WHERE id = ?");
+            statement.setString(1, id.toString());
+            try (ResultSet rs = statement.executeQuery()) {
+                if(rs.next()) {
+                    return read(rs);
+                } else {
+                    throw new DeletedException();
+                }
+            }
+        }
+    }
 
-        if(rs.next()) {
-            final UUID version = 
-                UUID.fromString(rs.getString("version"));
-            final String name = rs.getString("name");
-            final Instant joined = Instant.parse(rs.getString("joined"));
-            return (new Stored<User>
-                        (new User(name,joined),id,version));
-        } else {
-            throw new DeletedException();
+    @Override
+    public List<Maybe<Stored<User>>> getAll(Collection<UUID> ids)
+      throws SQLException {
+        final Map<UUID,Stored<User>> found = new HashMap<UUID,Stored<User>>();
+        try (Database.Scope scope = database.read()) {
+            for (List<UUID> chunk : Database.chunks(ids)) {
+                final PreparedStatement statement
+                    = scope.prepareIn("SELECT id,version,name,joined FROM User WHERE id IN (?)", chunk);
+                try (ResultSet rs = statement.executeQuery()) {
+                    while(rs.next()) {
+                        final Stored<User> user = read(rs);
+                        found.put(user.identity, user);
+                    }
+                }
+            }
+        }
+        return Storage.inOrder(ids, found);
+    }
+
+    /**
+     * Read a user from the current row of a result set.
+     */
+    private static Stored<User> read(ResultSet rs)
+      throws SQLException {
+        final UUID id = UUID.fromString(rs.getString("id"));
+        final UUID version = 
+            UUID.fromString(rs.getString("version"));
+        final String name = rs.getString("name");
+        final Instant joined = Instant.parse(rs.getString("joined"));
+        return (new Stored<User>
+                    (new User(name,joined),id,version));
+    }
+
+    @Override
+    public UUID getCurrentVersion(UUID id)
+      throws DeletedException,
+             SQLException {
+        final String sql = "SELECT version FROM User WHERE id = ?";
+        try (Database.Scope scope = database.read()) {
+            final PreparedStatement statement = scope.prepare(sql);
+            statement.setString(1, id.toString());
+            try (ResultSet rs = statement.executeQuery()) {
+                if(rs.next())
+                    return UUID.fromString(rs.getString("version"));
+            }
         }
+        throw new DeletedException();
     }
     
     /**
@@ -104,13 +174,14 @@ public final class UserStorage
      **/
     public Maybe<Stored<User>> lookup(String name) {
         final String sql = "SELECT id FROM User WHERE name =?";
-        try{
-            PreparedStatement preparedStatement = connection.prepareStatement(sql);
+        try (Database.Scope scope = database.read()) {
+            PreparedStatement preparedStatement = scope.prepare(sql);
             preparedStatement.setString(1,name);
-            final ResultSet rs = preparedStatement.executeQuery();
-            if(rs.next())
-                return Maybe.just(
-                    get(UUID.fromString(rs.getString("id"))));
+            try (ResultSet rs = preparedStatement.executeQuery()) {
+                if(rs.next())
+                    return Maybe.just(
+                        get(UUID.fromString(rs.getString("id"))));
+            }
         } catch (Exception e) {
         
         }
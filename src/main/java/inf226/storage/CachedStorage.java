@@ -0,0 +1,134 @@
+package inf226.storage;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.ToIntFunction;
+
+import inf226.util.Cache;
+import inf226.util.Maybe;
+
+/**
+ * A Storage which keeps recently used objects in memory.
+ *
+ * A cached object is only returned if its version is still
+ * the current version in the underlying storage, so looking
+ * it up costs a version check instead of a full load.
+ *
+ * Reads inside a write scope bypass the cache, so that it
+ * never sees uncommitted changes. Objects are dropped from the
+ * cache when they are updated or deleted, and loaded again
+ * by the next reader.
+ */
+public final class CachedStorage<T,E extends Exception>
+    implements Storage<T,E> {
+
+  private final Storage<T,E> storage;
+  private final Database database;
+  public final Cache<UUID,Stored<T>> cache;
+  // Loads in progress, so that concurrent misses share one load.
+  private final ConcurrentHashMap<UUID,CompletableFuture<Stored<T>>> loading
+      = new ConcurrentHashMap<UUID,CompletableFuture<Stored<T>>>();
+
+  /**
+   * Put a cache in front of a storage.
+   *
+   * @param storage  The underlying storage.
+   * @param database The database of the storage.
+   * @param capacity The maximal total weight of cached objects.
+   * @param weigher  The weight of an object, for instance its size.
+   **/
+  public CachedStorage(Storage<T,E> storage,
+                       Database database,
+                       long capacity,
+                       ToIntFunction<Stored<T>> weigher) {
+    this.storage = storage;
+    this.database = database;
+    this.cache = new Cache<UUID,Stored<T>>(capacity, weigher);
+  }
+
+  @Override
+  public Stored<T> save(T value) throws E {
+    return storage.save(value);
+  }
+
+  @Override
+  public Stored<T> update(Stored<T> object, T new_object)
+      throws UpdatedException, DeletedException, E {
+    cache.remove(object.identity);
+    return storage.update(object, new_object);
+  }
+
+  @Override
+  public void delete(Stored<T> object)
+      throws UpdatedException, DeletedException, E {
+    cache.remove(object.identity);
+    storage.delete(object);
+  }
+
+  @Override
+  public Stored<T> get(UUID id) throws DeletedException, E {
+    if (database.writing())
+      return storage.get(id);
+    final Stored<T> cached = cache.get(id).defaultValue(null);
+    if (cached != null) {
+      try {
+        if (storage.getCurrentVersion(id).equals(cached.version))
+          return cached;
+      } catch (DeletedException e) {
+        cache.remove(id);
+        throw e;
+      }
+    }
+    return load(id);
+  }
+
+  /**
+   * Batch lookups go straight to the storage, and refresh the cache.
+   */
+  @Override
+  public List<Maybe<Stored<T>>> getAll(Collection<UUID> ids) throws E {
+    final List<Maybe<Stored<T>>> result = storage.getAll(ids);
+    if (!database.writing())
+      result.forEach(found -> found.forEach(stored -> cache.put(stored.identity, stored)));
+    return result;
+  }
+
+  @Override
+  public UUID getCurrentVersion(UUID id) throws DeletedException, E {
+    return storage.getCurrentVersion(id);
+  }
+
+  /**
+   * Load an object into the cache, or wait for another
+   * thread already loading it.
+   */
+  private Stored<T> load(UUID id) throws DeletedException, E {
+    final CompletableFuture<Stored<T>> mine = new CompletableFuture<Stored<T>>();
+    final CompletableFuture<Stored<T>> other = loading.putIfAbsent(id, mine);
+    if (other != null) {
+      try {
+        return other.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        // The other load failed, try for ourselves.
+      }
+      return storage.get(id);
+    }
+    try {
+      final Stored<T> stored = storage.get(id);
+      cache.put(id, stored);
+      mine.complete(stored);
+      return stored;
+    } catch (Exception e) {
+      mine.completeExceptionally(e);
+      throw e;
+    } finally {
+      loading.remove(id, mine);
+    }
+  }
+}
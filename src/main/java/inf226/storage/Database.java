@@ -0,0 +1,314 @@
+package inf226.storage;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.sqlite.SQLiteConfig;
+
+/**
+ * This class manages the connections to an SQLite database.
+ *
+ * The database is run in WAL mode, so that readers and the
+ * writer do not block each other. All writes go through a
+ * single writer connection, while reads are served from a
+ * pool of read-only connections.
+ *
+ * Connections are handed out through scopes. A scope binds
+ * its connection to the current thread, and scopes opened
+ * while another scope is active on the same thread share its
+ * connection. This way, a read nested in a write transaction
+ * sees the uncommitted changes of that transaction.
+ **/
+public final class Database implements AutoCloseable {
+    private final Connection writer;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final BlockingQueue<Connection> readers;
+    private final ThreadLocal<Scope> current = new ThreadLocal<Scope>();
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    /* The number of prepared statements kept open on each connection. */
+    private static final int statementsPerConnection = 64;
+    /* The largest number of identities in one IN list. */
+    public static final int chunk = 512;
+    // The prepared statements of each connection.
+    private final IdentityHashMap<Connection,StatementCache> statements
+        = new IdentityHashMap<Connection,StatementCache>();
+
+    /**
+     * Create a database from already opened connections.
+     *
+     * @param writer  The connection used for all writes.
+     * @param readers The connections used for reading.
+     */
+    public Database(Connection writer, Collection<Connection> readers)
+      throws SQLException {
+        if (readers.isEmpty())
+            throw new IllegalArgumentException("Database needs at least one reader");
+        this.writer = writer;
+        this.readers = new ArrayBlockingQueue<Connection>(readers.size(), false, readers);
+        try (Statement statement = writer.createStatement()) {
+            statement.execute("PRAGMA journal_mode = WAL");
+            statement.executeUpdate("PRAGMA foreign_keys = ON");
+        }
+        writer.setAutoCommit(false);
+        statements.put(writer, new StatementCache(writer, statementsPerConnection));
+        for (Connection reader : readers) {
+            reader.setAutoCommit(false);
+            statements.put(reader, new StatementCache(reader, statementsPerConnection));
+        }
+    }
+
+    /**
+     * Open a database with one writer and a pool of readers.
+     *
+     * @param url     The JDBC url of the SQLite database.
+     * @param readers The number of read-only connections.
+     */
+    public static Database open(String url, int readers)
+      throws SQLException {
+        final Connection writer = DriverManager.getConnection(url);
+        // Switch to WAL before the readers attach to the file.
+        try (Statement statement = writer.createStatement()) {
+            statement.execute("PRAGMA journal_mode = WAL");
+        }
+        final SQLiteConfig config = new SQLiteConfig();
+        config.setReadOnly(true);
+        final ArrayList<Connection> pool = new ArrayList<Connection>(readers);
+        for (int i = 0; i < readers; ++i)
+            pool.add(DriverManager.getConnection(url, config.toProperties()));
+        return new Database(writer, pool);
+    }
+
+    /**
+     * Open a scope for reading.
+     *
+     * If the current thread is already in a scope, its
+     * connection is reused. Otherwise a connection is
+     * borrowed from the reader pool.
+     */
+    public Scope read() throws SQLException {
+        final Scope outer = current.get();
+        if (outer != null)
+            return new Scope(outer);
+        final Connection reader;
+        try {
+            reader = readers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a reader", e);
+        }
+        final Scope scope = new Scope(reader, false);
+        current.set(scope);
+        return scope;
+    }
+
+    /**
+     * Open a scope for writing.
+     *
+     * Only one thread at a time can hold a write scope. Nested
+     * write scopes join the transaction of the outermost one.
+     */
+    public Scope write() throws SQLException {
+        final Scope outer = current.get();
+        if (outer != null) {
+            if (!outer.writing)
+                throw new SQLException("Cannot write inside a read-only scope");
+            return new Scope(outer);
+        }
+        writeLock.lock();
+        final Scope scope = new Scope(writer, true);
+        current.set(scope);
+        return scope;
+    }
+
+    /**
+     * Split identities into chunks small enough for one IN list,
+     * leaving out duplicates.
+     */
+    public static List<List<UUID>> chunks(Collection<UUID> ids) {
+        final List<List<UUID>> chunks = new ArrayList<List<UUID>>();
+        List<UUID> current = new ArrayList<UUID>(Math.min(ids.size(), chunk));
+        for (UUID id : new LinkedHashSet<UUID>(ids)) {
+            if (current.size() == chunk) {
+                chunks.add(current);
+                current = new ArrayList<UUID>(chunk);
+            }
+            current.add(id);
+        }
+        if (!current.isEmpty())
+            chunks.add(current);
+        return chunks;
+    }
+
+    /**
+     * Check whether the current thread is inside a write scope.
+     */
+    public boolean writing() {
+        final Scope scope = current.get();
+        return scope != null && scope.writing;
+    }
+
+    /**
+     * The number of statements found in the statement caches.
+     */
+    public long statementHits() {
+        return statements.values().stream().mapToLong(StatementCache::hits).sum();
+    }
+
+    /**
+     * The number of statements which had to be prepared.
+     */
+    public long statementMisses() {
+        return statements.values().stream().mapToLong(StatementCache::misses).sum();
+    }
+
+    /**
+     * The number of prepared statements currently open.
+     */
+    public int openStatements() {
+        return statements.values().stream().mapToInt(StatementCache::open).sum();
+    }
+
+    /**
+     * Close the connections. Closing again does nothing.
+     */
+    @Override
+    public void close() throws SQLException {
+        if (!closed.compareAndSet(false, true))
+            return;
+        statements.values().forEach(StatementCache::close);
+        for (Connection reader : readers)
+            reader.close();
+        writer.close();
+    }
+
+    /**
+     * A scope holds a connection for the duration of an operation.
+     *
+     * Closing the outermost scope ends its transaction: a write
+     * scope is committed if commit() was called and rolled back
+     * otherwise, while a read scope simply releases its snapshot.
+     */
+    public final class Scope implements AutoCloseable {
+        public final Connection connection;
+        private final boolean writing;
+        private final Scope outermost;
+        private final List<Runnable> afterCommit;
+        private boolean committed = false;
+
+        private Scope(Connection connection, boolean writing) {
+            this.connection = connection;
+            this.writing = writing;
+            this.outermost = this;
+            this.afterCommit = new ArrayList<Runnable>();
+        }
+
+        private Scope(Scope outer) {
+            this.connection = outer.connection;
+            this.writing = outer.writing;
+            this.outermost = outer.outermost;
+            this.afterCommit = outer.afterCommit;
+        }
+
+        /**
+         * Get a prepared statement from the cache of the
+         * connection. Do not close it, and finish with its
+         * results before preparing the same SQL again.
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            return statements.get(connection).prepare(sql);
+        }
+
+        /**
+         * Prepare a query selecting a chunk of identities. The SQL
+         * has the IN list written as "(?)", and its parameters are
+         * the identities. The list is padded to a power of two by
+         * repeating the last identity, so that only a few distinct
+         * statements end up in the cache.
+         */
+        public PreparedStatement prepareIn(String sql, List<UUID> ids) throws SQLException {
+            final int size = Integer.highestOneBit(Math.max(1, ids.size() * 2 - 1));
+            final StringBuilder parameters = new StringBuilder("(?");
+            for (int i = 1; i < size; ++i)
+                parameters.append(",?");
+            parameters.append(")");
+            final PreparedStatement statement = prepare(sql.replace("(?)", parameters));
+            for (int i = 0; i < size; ++i)
+                statement.setString(i + 1, ids.get(Math.min(i, ids.size() - 1)).toString());
+            return statement;
+        }
+
+        /**
+         * Check whether a table has a column, for migrating
+         * tables created by older versions.
+         */
+        public boolean hasColumn(String table, String column) throws SQLException {
+            final PreparedStatement statement
+                = prepare("SELECT 1 FROM pragma_table_info(?) WHERE name = ?");
+            statement.setString(1, table);
+            statement.setString(2, column);
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next();
+            }
+        }
+
+        /**
+         * Mark the scope as successful.
+         */
+        public void commit() {
+            committed = true;
+        }
+
+        /**
+         * Run an action once the outermost transaction has been
+         * committed. The action is dropped if it is rolled back.
+         */
+        public void afterCommit(Runnable action) {
+            afterCommit.add(action);
+        }
+
+        @Override
+        public void close() throws SQLException {
+            if (outermost != this)
+                return;
+            current.remove();
+            if (writing) {
+                try {
+                    if (committed) {
+                        try {
+                            connection.commit();
+                        } catch (SQLException e) {
+                            connection.rollback();
+                            throw e;
+                        }
+                    } else {
+                        connection.rollback();
+                    }
+                } finally {
+                    writeLock.unlock();
+                }
+                if (committed)
+                    afterCommit.forEach(Runnable::run);
+            } else {
+                try {
+                    connection.rollback();
+                } finally {
+                    readers.add(connection);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package inf226.storage;
+
+import java.util.UUID;
+
+/**
+ * A reference to an object in a Storage.
+ *
+ * The reference only holds the identity and version of the
+ * object, and the object itself is loaded from the storage
+ * the first time it is resolved. Use this for links between
+ * stored objects which are not always followed.
+ */
+public final class Reference<T,E extends Exception> {
+  public final UUID identity;
+  public final UUID version;
+  private final Storage<T,E> storage;
+  private volatile Stored<T> resolved;
+
+  /**
+   * Refer to an object in a storage, to be loaded on demand.
+   **/
+  public Reference(UUID identity, UUID version, Storage<T,E> storage) {
+    this.identity = identity;
+    this.version = version;
+    this.storage = storage;
+    this.resolved = null;
+  }
+
+  /**
+   * Refer to an object which is already loaded.
+   **/
+  public Reference(Stored<T> stored) {
+    this.identity = stored.identity;
+    this.version = stored.version;
+    this.storage = null;
+    this.resolved = stored;
+  }
+
+  /**
+   * Get the referenced object, loading it from the storage
+   * on the first call.
+   *
+   * The loaded object is the one current at the time of the
+   * first call, which may be newer than the version of this
+   * reference.
+   **/
+  public Stored<T> resolve() throws DeletedException, E {
+    Stored<T> stored = resolved;
+    if (stored == null) {
+      stored = storage.get(identity);
+      resolved = stored;
+    }
+    return stored;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (other == null)
+        return false;
+    if (getClass() != other.getClass())
+        return false;
+    final Reference<?,?> reference_other = (Reference<?,?>) other;
+    return this.identity.equals(reference_other.identity)
+        && this.version.equals(reference_other.version);
+  }
+
+  @Override
+  public int hashCode() {
+    return identity.hashCode();
+  }
+}
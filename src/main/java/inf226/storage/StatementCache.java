@@ -0,0 +1,107 @@
+package inf226.storage;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A cache of prepared statements for one connection.
+ *
+ * Preparing a statement compiles its SQL, so statements are
+ * kept open and reused for the same SQL text. The least
+ * recently used statements are closed when the cache is full.
+ *
+ * A connection is only used by one thread at a time, and so
+ * is its cache. A statement handed out by prepare() is reused
+ * the next time the same SQL is prepared, so finish with its
+ * result set first, and never close the statement yourself.
+ */
+public final class StatementCache implements AutoCloseable {
+    private final Connection connection;
+    private final Map<String,PreparedStatement> statements;
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicInteger open = new AtomicInteger(0);
+
+    /**
+     * Create a statement cache.
+     *
+     * @param connection The connection to prepare statements on.
+     * @param capacity   The maximal number of open statements.
+     */
+    public StatementCache(Connection connection, int capacity) {
+        this.connection = connection;
+        this.statements = new LinkedHashMap<String,PreparedStatement>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,PreparedStatement> eldest) {
+                if (size() <= capacity)
+                    return false;
+                closeStatement(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Get a prepared statement for some SQL, with its
+     * parameters and batch cleared.
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        final PreparedStatement cached = statements.get(sql);
+        if (cached != null) {
+            hits.incrementAndGet();
+            cached.clearParameters();
+            cached.clearBatch();
+            return cached;
+        }
+        misses.incrementAndGet();
+        final PreparedStatement statement = connection.prepareStatement(sql);
+        open.incrementAndGet();
+        statements.put(sql, statement);
+        return statement;
+    }
+
+    /**
+     * The number of statements found in the cache.
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * The number of statements which had to be prepared.
+     */
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * The number of statements currently open.
+     */
+    public int open() {
+        return open.get();
+    }
+
+    /**
+     * Close all the cached statements.
+     */
+    @Override
+    public void close() {
+        statements.values().forEach(this::closeStatement);
+        statements.clear();
+    }
+
+    private void closeStatement(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            // The statement is gone either way.
+        }
+        open.decrementAndGet();
+    }
+}
@@ -2,7 +2,12 @@ package inf226.storage;
 
 import java.util.function.Consumer;
 import inf226.storage.*;
+import inf226.util.Maybe;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -22,6 +27,20 @@ public interface Storage<T,E extends Exception> {
     **/
    public Stored<T> save(T value) throws E;
 
+   /**
+    * Save several new objects into the storage.
+    *
+    * The stored objects are returned in the order given.
+    * Storages may override this to save all the objects
+    * in one transaction with fewer round trips.
+    **/
+   public default List<Stored<T>> saveAll(Collection<T> values) throws E {
+       final List<Stored<T>> stored = new ArrayList<Stored<T>>(values.size());
+       for (T value : values)
+           stored.add(save(value));
+       return stored;
+   }
+
    /**
     * Update an already stored object with a new value.
     *
@@ -44,4 +63,46 @@ public interface Storage<T,E extends Exception> {
     **/
     public Stored<T> get(UUID id) throws DeletedException,E;
 
+   /**
+    * Get several stored objects based on UUID.
+    *
+    * The results are in the order of the identities given,
+    * with nothing in place of objects which do not exist.
+    * Storages may override this to fetch the objects in a
+    * few queries rather than one per object.
+    **/
+    public default List<Maybe<Stored<T>>> getAll(Collection<UUID> ids) throws E {
+        final List<Maybe<Stored<T>>> result = new ArrayList<Maybe<Stored<T>>>(ids.size());
+        for (UUID id : ids) {
+            try {
+                result.add(Maybe.just(get(id)));
+            } catch (DeletedException e) {
+                result.add(Maybe.nothing());
+            }
+        }
+        return result;
+    }
+
+   /**
+    * Arrange objects found by getAll() in the order of the
+    * requested identities.
+    **/
+    public static<T> List<Maybe<Stored<T>>> inOrder(Collection<UUID> ids, Map<UUID,Stored<T>> found) {
+        final List<Maybe<Stored<T>>> result = new ArrayList<Maybe<Stored<T>>>(ids.size());
+        for (UUID id : ids)
+            result.add(new Maybe<Stored<T>>(found.get(id)));
+        return result;
+    }
+
+   /**
+    * Get the current version of a stored object.
+    *
+    * Use this to check whether a copy of an object is stale.
+    * Storages should override this with a lookup which does
+    * not load the whole object.
+    **/
+    public default UUID getCurrentVersion(UUID id) throws DeletedException,E {
+        return get(id).version;
+    }
+
 }
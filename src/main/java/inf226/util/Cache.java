@@ -0,0 +1,96 @@
+package inf226.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
+
+/**
+ * A bounded cache which evicts the least recently used entries.
+ *
+ * Every entry has a weight, and the cache keeps the total
+ * weight of its entries below a given capacity. Entries
+ * heavier than the whole capacity are not cached at all.
+ **/
+public final class Cache<K,V> {
+   private final long capacity;
+   private final ToIntFunction<V> weigher;
+   // Iterates from the least to the most recently used entry.
+   private final LinkedHashMap<K,V> entries
+       = new LinkedHashMap<K,V>(16, 0.75f, true);
+   private long weight = 0;
+   private final AtomicLong hits = new AtomicLong(0);
+   private final AtomicLong misses = new AtomicLong(0);
+
+   /**
+    * Create a cache.
+    *
+    * @param capacity The maximal total weight of the entries.
+    * @param weigher  The weight of a value.
+    **/
+   public Cache(long capacity, ToIntFunction<V> weigher) {
+      this.capacity = capacity;
+      this.weigher = weigher;
+   }
+
+   /**
+    * Look up a value, marking it as recently used.
+    **/
+   public synchronized Maybe<V> get(K key) {
+      final V value = entries.get(key);
+      if (value == null)
+         misses.incrementAndGet();
+      else
+         hits.incrementAndGet();
+      return new Maybe<V>(value);
+   }
+
+   /**
+    * Insert or replace a value.
+    **/
+   public synchronized void put(K key, V value) {
+      remove(key);
+      final int w = weigher.applyAsInt(value);
+      if (w > capacity)
+         return;
+      entries.put(key, value);
+      weight += w;
+      final Iterator<Map.Entry<K,V>> eldest = entries.entrySet().iterator();
+      while (weight > capacity) {
+         final Map.Entry<K,V> entry = eldest.next();
+         weight -= weigher.applyAsInt(entry.getValue());
+         eldest.remove();
+      }
+   }
+
+   /**
+    * Remove the value for a key, if any.
+    **/
+   public synchronized void remove(K key) {
+      final V old = entries.remove(key);
+      if (old != null)
+         weight -= weigher.applyAsInt(old);
+   }
+
+   /**
+    * The total weight of the cached values.
+    **/
+   public synchronized long weight() {
+      return weight;
+   }
+
+   /**
+    * The number of lookups which found a value.
+    **/
+   public long hits() {
+      return hits.get();
+   }
+
+   /**
+    * The number of lookups which found nothing.
+    **/
+   public long misses() {
+      return misses.get();
+   }
+}
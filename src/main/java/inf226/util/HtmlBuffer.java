@@ -0,0 +1,192 @@
+package inf226.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A growable buffer of UTF-8 encoded HTML.
+ *
+ * Text is escaped and encoded straight into the buffer, so a
+ * page is built without intermediate strings and written to
+ * the response in one go.
+ *
+ * Each thread keeps one buffer for reuse, handed out by
+ * acquire() and given back by close(). A thread which already
+ * holds its buffer gets a fresh one.
+ **/
+public final class HtmlBuffer implements AutoCloseable {
+   /* Buffers grown past this size are not kept for reuse. */
+   private static final int retained = 1 << 20;
+   private static final ThreadLocal<HtmlBuffer> local
+       = ThreadLocal.withInitial(() -> new HtmlBuffer(8192));
+
+   private byte[] bytes;
+   private int size = 0;
+   private boolean held = false;
+
+   public HtmlBuffer(int capacity) {
+      this.bytes = new byte[capacity];
+   }
+
+   /**
+    * Take the buffer of this thread, empty.
+    **/
+   public static HtmlBuffer acquire() {
+      final HtmlBuffer buffer = local.get();
+      if (buffer.held)
+         return new HtmlBuffer(1024);
+      buffer.held = true;
+      return buffer;
+   }
+
+   /**
+    * Give the buffer back for reuse.
+    **/
+   @Override
+   public void close() {
+      reset();
+      held = false;
+      if (bytes.length > retained)
+         bytes = new byte[retained];
+   }
+
+   /**
+    * Empty the buffer.
+    **/
+   public void reset() {
+      size = 0;
+   }
+
+   /**
+    * The number of bytes in the buffer.
+    **/
+   public int size() {
+      return size;
+   }
+
+   /**
+    * Append bytes which are already encoded.
+    **/
+   public HtmlBuffer write(byte[] data) {
+      reserve(data.length);
+      System.arraycopy(data, 0, bytes, size, data.length);
+      size += data.length;
+      return this;
+   }
+
+   /**
+    * Append text as it is, which must not come from users.
+    **/
+   public HtmlBuffer raw(String text) {
+      for (int i = 0; i < text.length(); ++i) {
+         final char c = text.charAt(i);
+         if (Character.isHighSurrogate(c) && i + 1 < text.length()
+               && Character.isLowSurrogate(text.charAt(i + 1))) {
+            codePoint(Character.toCodePoint(c, text.charAt(++i)));
+         } else if (Character.isSurrogate(c)) {
+            codePoint('?');
+         } else {
+            codePoint(c);
+         }
+      }
+      return this;
+   }
+
+   /**
+    * Append text escaped for HTML content or a quoted attribute,
+    * as Encode.forHtml does. Characters which are not allowed in
+    * HTML are replaced by spaces.
+    **/
+   public HtmlBuffer text(String text) {
+      for (int i = 0; i < text.length(); ++i) {
+         final char c = text.charAt(i);
+         switch (c) {
+            case '&':  ascii("&amp;"); break;
+            case '<':  ascii("&lt;"); break;
+            case '>':  ascii("&gt;"); break;
+            case '"':  ascii("&#34;"); break;
+            case '\'': ascii("&#39;"); break;
+            default:
+               if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                     && Character.isLowSurrogate(text.charAt(i + 1))) {
+                  final int cp = Character.toCodePoint(c, text.charAt(++i));
+                  codePoint(allowed(cp) ? cp : ' ');
+               } else if (Character.isSurrogate(c) || !allowed(c)) {
+                  codePoint(' ');
+               } else {
+                  codePoint(c);
+               }
+         }
+      }
+      return this;
+   }
+
+   /**
+    * Write the contents of the buffer to a stream.
+    **/
+   public void writeTo(OutputStream out) throws IOException {
+      out.write(bytes, 0, size);
+   }
+
+   /**
+    * A copy of the bytes from a position to the end.
+    **/
+   public byte[] copyFrom(int start) {
+      return Arrays.copyOfRange(bytes, start, size);
+   }
+
+   /**
+    * A copy of the contents of the buffer.
+    **/
+   public byte[] toByteArray() {
+      return copyFrom(0);
+   }
+
+   @Override
+   public String toString() {
+      return new String(bytes, 0, size, StandardCharsets.UTF_8);
+   }
+
+   /* Whether a code point may appear in HTML text. */
+   private static boolean allowed(int cp) {
+      if (cp < 0x20)
+         return cp == '\t' || cp == '\n' || cp == '\r';
+      if (cp >= 0x7f && cp <= 0x9f)
+         return cp == 0x85;
+      if (cp >= 0xfdd0 && cp <= 0xfdef)
+         return false;
+      return (cp & 0xfffe) != 0xfffe;
+   }
+
+   private void ascii(String text) {
+      reserve(text.length());
+      for (int i = 0; i < text.length(); ++i)
+         bytes[size++] = (byte) text.charAt(i);
+   }
+
+   private void codePoint(int cp) {
+      reserve(4);
+      if (cp < 0x80) {
+         bytes[size++] = (byte) cp;
+      } else if (cp < 0x800) {
+         bytes[size++] = (byte) (0xc0 | (cp >> 6));
+         bytes[size++] = (byte) (0x80 | (cp & 0x3f));
+      } else if (cp < 0x10000) {
+         bytes[size++] = (byte) (0xe0 | (cp >> 12));
+         bytes[size++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+         bytes[size++] = (byte) (0x80 | (cp & 0x3f));
+      } else {
+         bytes[size++] = (byte) (0xf0 | (cp >> 18));
+         bytes[size++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+         bytes[size++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+         bytes[size++] = (byte) (0x80 | (cp & 0x3f));
+      }
+   }
+
+   private void reserve(int more) {
+      if (size + more > bytes.length)
+         bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + more));
+   }
+}
@@ -0,0 +1,89 @@
+package inf226.util;
+
+import java.util.function.ToIntFunction;
+
+/**
+ * A bounded cache split into independent stripes by key.
+ *
+ * Each stripe is a Cache of its own, with its own lock and an
+ * equal share of the capacity, so threads looking up different
+ * keys rarely wait for each other. Entries are evicted least
+ * recently used first within their stripe, which approximates
+ * the order over the whole cache.
+ **/
+public final class StripedCache<K,V> {
+   private final Cache<K,V>[] stripes;
+
+   /**
+    * Create a cache.
+    *
+    * @param capacity The maximal total weight of the entries.
+    * @param stripes  The number of stripes.
+    * @param weigher  The weight of a value.
+    **/
+   @SuppressWarnings("unchecked")
+   public StripedCache(long capacity, int stripes, ToIntFunction<V> weigher) {
+      if (stripes < 1)
+         throw new IllegalArgumentException("A cache needs at least one stripe");
+      this.stripes = (Cache<K,V>[]) new Cache<?,?>[stripes];
+      for (int i = 0; i < stripes; ++i)
+         this.stripes[i] = new Cache<K,V>(capacity / stripes, weigher);
+   }
+
+   /**
+    * Look up a value, marking it as recently used.
+    **/
+   public Maybe<V> get(K key) {
+      return stripe(key).get(key);
+   }
+
+   /**
+    * Insert or replace a value.
+    **/
+   public void put(K key, V value) {
+      stripe(key).put(key, value);
+   }
+
+   /**
+    * Remove the value for a key, if any.
+    **/
+   public void remove(K key) {
+      stripe(key).remove(key);
+   }
+
+   /**
+    * The total weight of the cached values.
+    **/
+   public long weight() {
+      long weight = 0;
+      for (Cache<K,V> stripe : stripes)
+         weight += stripe.weight();
+      return weight;
+   }
+
+   /**
+    * The number of lookups which found a value.
+    **/
+   public long hits() {
+      long hits = 0;
+      for (Cache<K,V> stripe : stripes)
+         hits += stripe.hits();
+      return hits;
+   }
+
+   /**
+    * The number of lookups which found nothing.
+    **/
+   public long misses() {
+      long misses = 0;
+      for (Cache<K,V> stripe : stripes)
+         misses += stripe.misses();
+      return misses;
+   }
+
+   private Cache<K,V> stripe(K key) {
+      final int hash = key.hashCode();
+      // Mix in the high bits, which the modulus would ignore.
+      return stripes[Math.floorMod(hash ^ (hash >>> 16), stripes.length)];
+   }
+}
@@ -0,0 +1,83 @@
+package inf226.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import org.owasp.encoder.Encode;
+
+/**
+ * An HTML template, compiled once into UTF-8 encoded segments.
+ *
+ * Holes are written {{n}}, where n is the index of the value
+ * to fill in. Values are escaped for HTML text and quoted
+ * attributes, unless the hole says otherwise:
+ * {{n|uri}} escapes the value as a URI component, and
+ * {{n|raw}} inserts it as it is, for values which cannot
+ * come from users, such as identities and numbers.
+ **/
+public final class Template {
+   private enum Escape { text, uri, raw }
+
+   /* The static text, one more segment than there are holes. */
+   private final byte[][] segments;
+   private final int[] holes;
+   private final Escape[] escapes;
+
+   private Template(byte[][] segments, int[] holes, Escape[] escapes) {
+      this.segments = segments;
+      this.holes = holes;
+      this.escapes = escapes;
+   }
+
+   /**
+    * Compile a template.
+    * @throws IllegalArgumentException if a hole is malformed.
+    **/
+   public static Template compile(String source) {
+      final ArrayList<byte[]> segments = new ArrayList<byte[]>();
+      final ArrayList<Integer> holes = new ArrayList<Integer>();
+      final ArrayList<Escape> escapes = new ArrayList<Escape>();
+      int position = 0;
+      while (true) {
+         final int open = source.indexOf("{{", position);
+         if (open < 0)
+            break;
+         final int close = source.indexOf("}}", open);
+         if (close < 0)
+            throw new IllegalArgumentException("Unclosed hole in template at " + open);
+         segments.add(source.substring(position, open).getBytes(StandardCharsets.UTF_8));
+         final String[] hole = source.substring(open + 2, close).split("\\|");
+         try {
+            holes.add(Integer.parseInt(hole[0].trim()));
+            escapes.add(hole.length > 1 ? Escape.valueOf(hole[1].trim()) : Escape.text);
+         } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid hole in template at " + open, e);
+         }
+         position = close + 2;
+      }
+      segments.add(source.substring(position).getBytes(StandardCharsets.UTF_8));
+      final int[] holeArray = new int[holes.size()];
+      for (int i = 0; i < holeArray.length; ++i)
+         holeArray[i] = holes.get(i);
+      return new Template(segments.toArray(new byte[0][]),
+                          holeArray,
+                          escapes.toArray(new Escape[0]));
+   }
+
+   /**
+    * Render the template into a buffer.
+    * @param values The values for the holes, by index.
+    **/
+   public void render(HtmlBuffer out, Object... values) {
+      for (int i = 0; i < holes.length; ++i) {
+         out.write(segments[i]);
+         final String value = String.valueOf(values[holes[i]]);
+         switch (escapes[i]) {
+            case text: out.text(value); break;
+            case uri:  out.raw(Encode.forUriComponent(value)); break;
+            case raw:  out.raw(value); break;
+         }
+      }
+      out.write(segments[holes.length]);
+   }
+}
@@ -5,6 +5,7 @@ import inf226.util.Mutable;
 import java.util.function.Function;
 import java.util.function.BiFunction;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 public final class List<T> {
    private final Maybe<ListItem<T> > items;
@@ -73,6 +74,20 @@ public final class List<T> {
     return result;
    }
 
+   public List<T> filter(Predicate<T> p) {
+    List<T> result = empty();
+    try {
+       for(List<T> l = this.reverse(); ; l = l.tail().get()) {
+          final T element = l.head().get();
+          if (p.test(element))
+             result = cons(element, result);
+       }
+    } catch (Maybe.NothingException e) {
+       // No more elements
+    }
+    return result;
+   }
+
    public<B,C> List<C> zipWith(List<B> other, BiFunction<T,B,C> f) {
     Builder<C> result = builder();
     try {
@@ -0,0 +1,634 @@
+package inf226.inchat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import inf226.storage.*;
+import inf226.util.Maybe;
+import inf226.util.immutable.List;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+public class ChannelStorageTest {
+    /* The number of statements executed on the database. */
+    private final AtomicInteger queries = new AtomicInteger(0);
+    /* The number of rows read while holding the writer lock. */
+    private final AtomicInteger writerRows = new AtomicInteger(0);
+
+    /* Each test gets a database of its own, deleted afterwards. */
+    @TempDir
+    Path directory;
+    private String dburl;
+    private Database database;
+    private ChannelStorage channelStore;
+    private Stored<Channel> channel;
+
+    @BeforeEach
+    void openDatabase() throws Exception {
+        dburl = "jdbc:sqlite:" + directory.resolve("test.db");
+        database = Database.open(dburl, 1);
+        channelStore = new ChannelStorage(database);
+        channel = channelStore.save(new Channel("Test", List.empty(), new HashMap<String,String>()));
+    }
+
+    @AfterEach
+    void closeDatabase() throws Exception {
+        database.close();
+    }
+
+    @Test
+    void channelLoadIsConstantInQueries() throws Exception {
+        final Database counted = countedDatabase();
+        final ChannelStorage countedStore = new ChannelStorage(counted, 1000);
+
+        post(countedStore, channel, 1);
+        final int small = queriesFor(countedStore, channel);
+        post(countedStore, channel, 100);
+        final int large = queriesFor(countedStore, channel);
+
+        assertEquals(101 * 2, countedStore.get(channel.identity).value.events.length);
+        assertEquals(small, large);
+        counted.close();
+    }
+
+    @Test
+    void appendIsConstantInQueries() throws Exception {
+        final Database counted = countedDatabase();
+        final ChannelStorage countedStore = new ChannelStorage(counted);
+        final HashMap<String,String> roles = new HashMap<String,String>();
+        roles.put("Alice", "owner");
+        roles.put("Bob", "participant");
+        final Stored<Channel> owned
+            = countedStore.save(new Channel("Appended", List.empty(), roles));
+
+        final int small = queriesForAppend(countedStore, owned);
+        post(countedStore, owned, 100);
+        final int large = queriesForAppend(countedStore, owned);
+        assertEquals(small, large);
+
+        final Stored<Channel> appended = countedStore.append(owned,
+            Channel.Event.createMessageEvent(owned.identity, Instant.now(), "Bob", "Last"));
+        assertEquals(appended.version, countedStore.getCurrentVersion(owned.identity));
+        assertEquals("Last", countedStore.get(owned.identity).value.events.head().get().value.message);
+        assertEquals(roles, countedStore.get(owned.identity).value.roles);
+        counted.close();
+    }
+
+    @Test
+    void appendReadsNoRolesWhileWriting() throws Exception {
+        final Database counted = countedDatabase();
+        final ChannelStorage countedStore = new ChannelStorage(counted);
+        final HashMap<String,String> few = new HashMap<String,String>();
+        final HashMap<String,String> many = new HashMap<String,String>();
+        for (int i = 0; i < 1000; ++i) {
+            if (i < 2)
+                few.put("User " + i, "participant");
+            many.put("User " + i, "participant");
+        }
+        final Stored<Channel> small = countedStore.save(new Channel("Small", List.empty(), few));
+        final Stored<Channel> large = countedStore.save(new Channel("Large", List.empty(), many));
+        post(countedStore, small, 10);
+        post(countedStore, large, 10);
+
+        final int smallRows = writerRowsForAppend(countedStore, small);
+        final int largeRows = writerRowsForAppend(countedStore, large);
+        assertEquals(smallRows, largeRows);
+
+        final Stored<Channel> appended = countedStore.append(large,
+            Channel.Event.createMessageEvent(large.identity, Instant.now(), "User 1", "Last"));
+        assertEquals(many, appended.value.roles);
+        assertEquals("Last", appended.value.events.head().get().value.message);
+        assertEquals(appended.version, countedStore.getCurrentVersion(large.identity));
+        counted.close();
+    }
+
+    @Test
+    void channelLoadsWindowOfNewestEvents() throws Exception {
+        final ChannelStorage windowedStore = new ChannelStorage(database, 10);
+        post(windowedStore, channel, 12);
+
+        // The newest ten events, newest first.
+        final Channel newest = windowedStore.get(channel.identity).value;
+        assertEquals(10, newest.events.length);
+        assertTrue(newest.older);
+        assertEquals("Message 11", newest.events.head().get().value.message);
+        final Stored<Channel.Event> oldest = newest.events.last.get();
+        assertEquals("Alice", oldest.value.sender);
+
+        // Paging back reaches the first events of the channel.
+        final Channel middle = windowedStore.getBefore(channel.identity, oldest.identity).value;
+        assertEquals(10, middle.events.length);
+        assertTrue(middle.older);
+        final Channel first = windowedStore.getBefore(channel.identity, middle.events.last.get().identity).value;
+        assertEquals(4, first.events.length);
+        assertFalse(first.older);
+        assertEquals("Message 0", first.events.tail().get().tail().get().head().get().value.message);
+
+        // And forward again by sequence number.
+        final List<Stored<Channel.Event>> after
+            = windowedStore.eventsBetween(channel.identity, 1, 4).get();
+        assertEquals(3, after.length);
+        assertEquals("Message 1", after.head().get().value.message);
+    }
+
+    @Test
+    void statementsArePreparedOnce() throws Exception {
+        post(channelStore, channel, 1);
+
+        channelStore.get(channel.identity);
+        final long misses = database.statementMisses();
+        final int open = database.openStatements();
+        channelStore.get(channel.identity);
+        channelStore.get(channel.identity);
+        assertEquals(misses, database.statementMisses());
+        assertEquals(open, database.openStatements());
+        assertTrue(database.statementHits() > 0);
+
+        database.close();
+        assertEquals(0, database.openStatements());
+    }
+
+    @Test
+    void channelsAreSavedWithAllRoles() throws Exception {
+        final HashMap<String,String> roles = new HashMap<String,String>();
+        roles.put("Alice", "owner");
+        roles.put("Bob", "moderator");
+        final java.util.List<Stored<Channel>> saved = channelStore.saveAll(Arrays.asList(
+            new Channel("First", List.empty(), roles),
+            new Channel("Second", List.empty(), new HashMap<String,String>())));
+        assertEquals(2, saved.size());
+        assertEquals("Second", channelStore.get(saved.get(1).identity).value.name);
+
+        final Stored<Channel> first = channelStore.get(saved.get(0).identity);
+        assertEquals(roles, first.value.roles);
+        channelStore.update(first, first.value.setRole("Carol", "participant"));
+        final HashMap<String,String> updated = channelStore.get(first.identity).value.roles;
+        assertEquals(3, updated.size());
+        assertEquals("owner", updated.get("Alice"));
+    }
+
+    @Test
+    void eventsAreFetchedInRequestOrder() throws Exception {
+        // More events than fit in one IN list.
+        final java.util.List<UUID> ids = new ArrayList<UUID>();
+        try (Database.Scope scope = database.write()) {
+            for (int i = 0; i < Database.chunk + 10; ++i) {
+                ids.add(channelStore.eventStore.save(
+                    Channel.Event.createMessageEvent(channel.identity, Instant.now(), "Alice", "Message " + i)).identity);
+            }
+            scope.commit();
+        }
+        Collections.reverse(ids);
+        final UUID missing = UUID.randomUUID();
+        ids.add(1, missing);
+
+        final java.util.List<Maybe<Stored<Channel.Event>>> events = channelStore.eventStore.getAll(ids);
+        assertEquals(ids.size(), events.size());
+        assertEquals("Message " + (Database.chunk + 9), events.get(0).get().value.message);
+        assertTrue(events.get(1).isNothing());
+        assertEquals("Message 0", events.get(ids.size() - 1).get().value.message);
+
+        assertEquals(channel.identity,
+                     channelStore.getAll(Arrays.asList(missing, channel.identity)).get(1).get().identity);
+    }
+
+    @Test
+    void eventsAreNumberedInSequence() throws Exception {
+        post(channelStore, channel, 3);
+        assertEquals(6, channelStore.getCurrentSequence(channel.identity));
+        assertEquals(6, channelStore.get(channel.identity).value.sequence);
+
+        // Only the events after a sequence number, newest first.
+        final List<Stored<Channel.Event>> after = channelStore.eventsBetween(channel.identity, 4, 6).get();
+        assertEquals(2, after.length);
+        assertEquals("Message 2", after.head().get().value.message);
+
+        final Stored<Channel> appended = channelStore.append(channelStore.get(channel.identity),
+            Channel.Event.createMessageEvent(channel.identity, Instant.now(), "Alice", "Last"));
+        assertEquals(7, appended.value.sequence);
+
+        // Appending to a stale copy still returns the whole window.
+        final Stored<Channel> stale = channelStore.append(channel,
+            Channel.Event.createMessageEvent(channel.identity, Instant.now(), "Bob", "Later"));
+        assertEquals(8, stale.value.sequence);
+        assertEquals(8, stale.value.events.length);
+        assertEquals("Later", stale.value.events.head().get().value.message);
+        assertEquals("Last", stale.value.events.tail().get().head().get().value.message);
+        assertEquals(channelStore.getCurrentVersion(channel.identity), stale.version);
+    }
+
+    @Test
+    void waitersAreCalledBackOnce() throws Exception {
+        final java.util.List<Stored<Channel>> calls = new java.util.ArrayList<Stored<Channel>>();
+        channelStore.onNextVersion(channel.identity, channel.version, calls::add);
+        assertTrue(calls.isEmpty());
+
+        final Stored<Channel> appended = channelStore.append(channel,
+            Channel.Event.createMessageEvent(channel.identity, Instant.now(), "Alice", "Wake up"));
+        channelStore.append(appended,
+            Channel.Event.createMessageEvent(channel.identity, Instant.now(), "Alice", "Again"));
+        assertEquals(1, calls.size());
+        assertEquals(appended.version, calls.get(0).version);
+
+        // A waiter which is behind is called back at once.
+        channelStore.onNextVersion(channel.identity, channel.version, calls::add);
+        assertEquals(2, calls.size());
+        assertEquals(2, calls.get(1).value.sequence);
+        assertEquals(0, channelStore.waiting());
+    }
+
+    @Test
+    void waitersRacingWithAppendsAreNotLost() throws Exception {
+        // Waiters read while appends write.
+        final Database shared = Database.open(dburl, 2);
+        final ChannelStorage racingStore = new ChannelStorage(shared);
+        for (int i = 0; i < 50; ++i) {
+            final Stored<Channel> seen = channel;
+            final java.util.concurrent.CountDownLatch woken = new java.util.concurrent.CountDownLatch(1);
+            final Thread waiter = new Thread(() -> {
+                try {
+                    racingStore.onNextVersion(seen.identity, seen.version, c -> woken.countDown());
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            waiter.start();
+            channel = racingStore.append(channel,
+                Channel.Event.createMessageEvent(channel.identity, Instant.now(), "Alice", "Message " + i));
+            waiter.join();
+            assertTrue(woken.await(5, java.util.concurrent.TimeUnit.SECONDS));
+        }
+        shared.close();
+    }
+
+    @Test
+    void waitersAreCalledBackWithTheNewestVersion() throws Exception {
+        // Concurrent appends notify in any order once they have committed.
+        final Database shared = Database.open(dburl, 2);
+        final ChannelStorage racingStore = new ChannelStorage(shared);
+        final Stored<Channel> first = channel;
+        final java.util.List<Thread> appenders = new java.util.ArrayList<Thread>();
+        for (int i = 0; i < 8; ++i) {
+            final Thread appender = new Thread(() -> {
+                try {
+                    for (int j = 0; j < 25; ++j)
+                        racingStore.append(first,
+                            Channel.Event.createMessageEvent(first.identity, Instant.now(), "Alice", "Message " + j));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            appenders.add(appender);
+            appender.start();
+        }
+        for (Thread appender : appenders)
+            appender.join();
+
+        final Stored<Channel> newest = racingStore.get(first.identity);
+        assertEquals(200, newest.value.sequence);
+        // A waiter behind is called back with the newest version,
+        // and one which has it is not called back at all.
+        final Stored<Channel> behind = racingStore.waitNextVersion(first.identity, first.version, 1000).get();
+        assertEquals(newest.version, behind.version);
+        assertTrue(racingStore.waitNextVersion(first.identity, newest.version, 10).isNothing());
+        shared.close();
+    }
+
+    @Test
+    void cancelledWaitersAreDropped() throws Exception {
+        assertTrue(channelStore.waitNextVersion(channel.identity, channel.version, 50).isNothing());
+        assertEquals(0, channelStore.waiting());
+        assertEquals(1, channelStore.cancelled());
+
+        final AtomicInteger calls = new AtomicInteger(0);
+        final Runnable cancel
+            = channelStore.onNextVersion(channel.identity, channel.version, c -> calls.incrementAndGet());
+        assertEquals(1, channelStore.waiting());
+        cancel.run();
+        cancel.run();
+        assertEquals(0, channelStore.waiting());
+        assertEquals(2, channelStore.cancelled());
+
+        channelStore.append(channel,
+            Channel.Event.createMessageEvent(channel.identity, Instant.now(), "Alice", "Hello"));
+        assertEquals(0, calls.get());
+    }
+
+    @Test
+    void burstsWakeWaitersOnce() throws Exception {
+        final java.util.concurrent.ScheduledExecutorService timer
+            = java.util.concurrent.Executors.newSingleThreadScheduledExecutor();
+        final ChannelStorage coalescingStore = new ChannelStorage(database, 100, timer, 2000);
+
+        final AtomicInteger calls = new AtomicInteger(0);
+        final java.util.concurrent.CompletableFuture<Stored<Channel>> woken
+            = new java.util.concurrent.CompletableFuture<Stored<Channel>>();
+        coalescingStore.onNextVersion(channel.identity, channel.version, c -> {
+            calls.incrementAndGet();
+            woken.complete(c);
+        });
+        for (int i = 0; i < 20; ++i) {
+            channel = coalescingStore.append(channel,
+                Channel.Event.createMessageEvent(channel.identity, Instant.now(), "Alice", "Message " + i));
+        }
+        // Waiters see the old version until the window closes.
+        assertFalse(woken.isDone());
+        assertTrue(coalescingStore.waitNextVersion(channel.identity, channel.version, 10).isNothing());
+
+        final Stored<Channel> seen = woken.get(5, java.util.concurrent.TimeUnit.SECONDS);
+        assertEquals(channel.version, seen.version);
+        assertEquals(20, seen.value.sequence);
+        assertEquals(1, calls.get());
+        timer.shutdown();
+    }
+
+    @Test
+    void coalescedNotificationsKeepTheNewestVersion() throws Exception {
+        final java.util.concurrent.ScheduledExecutorService timer
+            = java.util.concurrent.Executors.newSingleThreadScheduledExecutor();
+        final Database shared = Database.open(dburl, 2);
+        final ChannelStorage coalescingStore = new ChannelStorage(shared, 100, timer, 20);
+        final Stored<Channel> first = channel;
+        final java.util.List<Thread> appenders = new java.util.ArrayList<Thread>();
+        for (int i = 0; i < 8; ++i) {
+            final Thread appender = new Thread(() -> {
+                try {
+                    for (int j = 0; j < 25; ++j)
+                        coalescingStore.append(first,
+                            Channel.Event.createMessageEvent(first.identity, Instant.now(), "Alice", "Message " + j));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            appenders.add(appender);
+            appender.start();
+        }
+        for (Thread appender : appenders)
+            appender.join();
+        // Let the last window close.
+        Thread.sleep(200);
+
+        final Stored<Channel> newest = coalescingStore.get(first.identity);
+        assertTrue(coalescingStore.waitNextVersion(first.identity, newest.version, 10).isNothing());
+        timer.shutdown();
+        shared.close();
+    }
+
+    @Test
+    void staleUpdatesConflict() throws Exception {
+        final Stored<Channel> renamed
+            = channelStore.update(channel, new Channel("Renamed", List.empty(), new HashMap<String,String>()));
+
+        final UpdatedException conflict = assertThrows(UpdatedException.class,
+            () -> channelStore.update(channel, new Channel("Lost", List.empty(), new HashMap<String,String>())));
+        assertEquals(renamed.version, conflict.newObject.version);
+        assertThrows(UpdatedException.class, () -> channelStore.delete(channel));
+
+        final Stored<Channel.Event> message = channelStore.eventStore.save(
+            Channel.Event.createMessageEvent(channel.identity, Instant.now(), "Alice", "Hello"));
+        channelStore.eventStore.update(message, message.value.setMessage("Edited"));
+        assertEquals("Edited", channelStore.eventStore.get(message.identity).value.message);
+
+        channelStore.delete(renamed);
+        assertThrows(DeletedException.class, () -> channelStore.update(renamed, renamed.value));
+    }
+
+    @Test
+    void editsAndDeletionsAreAppended() throws Exception {
+        channel = channelStore.append(channel,
+            Channel.Event.createMessageEvent(channel.identity, Instant.now(), "Alice", "Hello"));
+        final Stored<Channel.Event> hello = channel.value.events.head().get();
+        channel = channelStore.append(channel,
+            Channel.Event.createMessageEvent(channel.identity, Instant.now(), "Bob", "Oops"));
+        final Stored<Channel.Event> oops = channel.value.events.head().get();
+
+        channel = channelStore.append(channel,
+            Channel.Event.createEditEvent(channel.identity, Instant.now(), "Alice", hello.identity, "Hi"));
+        final Stored<Channel.Event> edited = channel.value.events.last.get();
+        assertEquals("Hi", edited.value.message);
+        assertNotEquals(hello.version, edited.version);
+        channel = channelStore.append(channel,
+            Channel.Event.createDeleteEvent(channel.identity, Instant.now(), "Bob", oops.identity));
+        assertEquals(1, channel.value.events.length);
+        assertThrows(DeletedException.class, () -> channelStore.eventStore.get(oops.identity));
+
+        // Every number is still in the log, and deleted events are left out.
+        final List<Stored<Channel.Event>> delta
+            = channelStore.eventsBetween(channel.identity, 0, channel.value.sequence).get();
+        assertEquals(3, delta.length);
+        assertEquals(Channel.Event.Type.delete, delta.head().get().value.type);
+        assertEquals("Hi", delta.last.get().value.message);
+        assertTrue(channelStore.eventsBetween(channel.identity, 0, channel.value.sequence + 1).isNothing());
+
+        // The text of a deleted message is gone, edits included.
+        channel = channelStore.append(channel,
+            Channel.Event.createEditEvent(channel.identity, Instant.now(), "Alice", hello.identity, "Secret"));
+        channel = channelStore.append(channel,
+            Channel.Event.createDeleteEvent(channel.identity, Instant.now(), "Alice", hello.identity));
+        assertEquals(0, channel.value.events.length);
+        try (Database.Scope scope = database.read();
+             Statement statement = scope.connection.createStatement();
+             ResultSet rs = statement.executeQuery(
+                 "SELECT (SELECT COUNT(*) FROM Message WHERE content <> '')"
+                 + " + (SELECT COUNT(*) FROM Edited WHERE content <> '')")) {
+            assertEquals(0, rs.getInt(1));
+        }
+    }
+
+    @Test
+    void olderDatabasesAreNumbered() throws Exception {
+        final String olderurl = "jdbc:sqlite:" + directory.resolve("older.db");
+        try (Connection connection = DriverManager.getConnection(olderurl);
+             Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE Channel (id TEXT PRIMARY KEY, version TEXT, name TEXT)");
+            statement.executeUpdate("CREATE TABLE Event (id TEXT PRIMARY KEY, version TEXT, channel TEXT, type INTEGER, time TEXT)");
+            statement.executeUpdate("CREATE TABLE Message (id TEXT PRIMARY KEY, sender TEXT, content Text)");
+            statement.executeUpdate("INSERT INTO Channel VALUES('" + channel.identity + "','" + channel.version + "','Older')");
+            final UUID other = UUID.randomUUID();
+            statement.executeUpdate("INSERT INTO Channel VALUES('" + other + "','" + UUID.randomUUID() + "','Other')");
+            for (int i = 0; i < 3; ++i) {
+                for (UUID id : Arrays.asList(channel.identity, other)) {
+                    final UUID event = UUID.randomUUID();
+                    statement.executeUpdate("INSERT INTO Event VALUES('" + event + "','" + UUID.randomUUID() + "','"
+                                            + id + "',0,'" + Instant.now() + "')");
+                    statement.executeUpdate("INSERT INTO Message VALUES('" + event + "','Alice','Message " + i + "')");
+                }
+            }
+        }
+
+        final Database older = Database.open(olderurl, 1);
+        final ChannelStorage olderStore = new ChannelStorage(older);
+        final Stored<Channel> numbered = olderStore.get(channel.identity);
+        assertEquals(3, numbered.value.sequence);
+        final List<Stored<Channel.Event>> delta = olderStore.eventsBetween(channel.identity, 1, 3).get();
+        assertEquals(2, delta.length);
+        assertEquals("Message 2", delta.head().get().value.message);
+
+        // New events continue the numbering.
+        assertEquals(4, olderStore.append(numbered,
+            Channel.Event.createMessageEvent(channel.identity, Instant.now(), "Alice", "Newer")).value.sequence);
+        older.close();
+    }
+
+    @Test
+    void olderRolesAreKeyedByUser() throws Exception {
+        final String olderurl = "jdbc:sqlite:" + directory.resolve("older.db");
+        final UUID deleted = UUID.randomUUID();
+        try (Connection connection = DriverManager.getConnection(olderurl);
+             Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE Channel (id TEXT PRIMARY KEY, version TEXT, name TEXT)");
+            statement.executeUpdate("CREATE TABLE ChannelRoles (id TEXT PRIMARY KEY, user TEXT, role TEXT)");
+            statement.executeUpdate("INSERT INTO Channel VALUES('" + channel.identity + "','" + channel.version + "','Older')");
+            statement.executeUpdate("INSERT INTO ChannelRoles VALUES('" + channel.identity + "','Alice','owner')");
+            statement.executeUpdate("INSERT INTO ChannelRoles VALUES('" + deleted + "','Bob','owner')");
+        }
+
+        final Database older = Database.open(olderurl, 1);
+        final ChannelStorage olderStore = new ChannelStorage(older);
+        final Stored<Channel> rekeyed = olderStore.get(channel.identity);
+        assertEquals("owner", rekeyed.value.roles.get("Alice"));
+
+        // Channels can have several members, whose roles go with them.
+        final HashMap<String,String> roles = new HashMap<String,String>(rekeyed.value.roles);
+        roles.put("Bob", "participant");
+        olderStore.update(rekeyed, new Channel("Older", List.empty(), roles));
+        assertEquals(roles, olderStore.get(channel.identity).value.roles);
+        try (Database.Scope scope = older.write();
+             Statement statement = scope.connection.createStatement()) {
+            statement.executeUpdate("DELETE FROM Channel");
+            try (ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM ChannelRoles")) {
+                assertEquals(0, rs.getInt(1));
+            }
+        }
+        older.close();
+    }
+
+    /**
+     * Post a number of join and message events to a channel.
+     */
+    private static void post(ChannelStorage channelStore, Stored<Channel> channel, int count)
+      throws SQLException {
+        for (int i = 0; i < count; ++i) {
+            channelStore.eventStore.save(
+                Channel.Event.createJoinEvent(channel.identity, Instant.now(), "Alice"));
+            channelStore.eventStore.save(
+                Channel.Event.createMessageEvent(channel.identity, Instant.now(), "Alice", "Message " + i));
+        }
+    }
+
+    /**
+     * Count the statements executed when loading a channel.
+     */
+    private int queriesFor(ChannelStorage channelStore, Stored<Channel> channel)
+      throws SQLException, DeletedException {
+        final int before = queries.get();
+        channelStore.get(channel.identity);
+        return queries.get() - before;
+    }
+
+    /**
+     * Count the statements executed when appending to a channel.
+     */
+    private int queriesForAppend(ChannelStorage channelStore, Stored<Channel> channel)
+      throws SQLException, DeletedException {
+        final int before = queries.get();
+        channelStore.append(channel,
+            Channel.Event.createMessageEvent(channel.identity, Instant.now(), "Alice", "Appended"));
+        return queries.get() - before;
+    }
+
+    /**
+     * Count the rows read on the writer connection when appending
+     * to a channel.
+     */
+    private int writerRowsForAppend(ChannelStorage channelStore, Stored<Channel> channel)
+      throws SQLException, DeletedException {
+        final int before = writerRows.get();
+        channelStore.append(channel,
+            Channel.Event.createMessageEvent(channel.identity, Instant.now(), "Alice", "Appended"));
+        return writerRows.get() - before;
+    }
+
+    /**
+     * Open the database of the test again, with every statement
+     * executed on it counted, and the rows read by the writer.
+     */
+    private Database countedDatabase() throws SQLException {
+        return new Database(counting(DriverManager.getConnection(dburl), writerRows),
+                            Collections.singletonList(counting(DriverManager.getConnection(dburl),
+                                                               new AtomicInteger(0))));
+    }
+
+    /**
+     * Wrap a connection so that every statement it executes is
+     * counted, and every row it reads is counted in rows.
+     */
+    private Connection counting(Connection connection, AtomicInteger rows) {
+        return (Connection) Proxy.newProxyInstance(
+            Connection.class.getClassLoader(),
+            new Class<?>[]{ Connection.class },
+            (proxy, method, args) -> {
+                final Object result = invoke(connection, method, args);
+                if (result instanceof Statement)
+                    return countingStatement((Statement) result, method.getReturnType(), rows);
+                return result;
+            });
+    }
+
+    private Object countingStatement(Statement statement, Class<?> type, AtomicInteger rows) {
+        return Proxy.newProxyInstance(
+            type.getClassLoader(),
+            new Class<?>[]{ type },
+            (proxy, method, args) -> {
+                if (method.getName().startsWith("execute"))
+                    queries.incrementAndGet();
+                final Object result = invoke(statement, method, args);
+                if (result instanceof ResultSet)
+                    return countingRows((ResultSet) result, rows);
+                return result;
+            });
+    }
+
+    private static ResultSet countingRows(ResultSet resultSet, AtomicInteger rows) {
+        return (ResultSet) Proxy.newProxyInstance(
+            ResultSet.class.getClassLoader(),
+            new Class<?>[]{ ResultSet.class },
+            (proxy, method, args) -> {
+                final Object result = invoke(resultSet, method, args);
+                if (method.getName().equals("next") && Boolean.TRUE.equals(result))
+                    rows.incrementAndGet();
+                return result;
+            });
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args)
+      throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
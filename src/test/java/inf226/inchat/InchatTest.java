@@ -1,42 +1,110 @@
  
 package inf226.inchat;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import inf226.storage.*;
 
 import inf226.util.*;
+import inf226.util.immutable.List;
 
+import java.nio.file.Path;
 import java.util.UUID;
 import java.sql.SQLException;
-import java.sql.Connection;
-import java.sql.DriverManager;
 
 public class InchatTest{
+    /* The databases of the tests, deleted afterwards. */
+    @TempDir
+    Path directory;
+
     @Test
-    void chatSetup() throws Maybe.NothingException,SQLException {
+    void chatSetup() throws Maybe.NothingException,SQLException,DeletedException {
         UUID testID = UUID.randomUUID();
         System.err.println("Running test:" + testID);
-        final String path = "test" + testID +  ".db";
+        final Path path = directory.resolve("test" + testID +  ".db");
         final String dburl = "jdbc:sqlite:" + path;
-        final Connection connection = DriverManager.getConnection(dburl);
-        connection.createStatement().executeUpdate("PRAGMA foreign_keys = ON");
+        final Database database = Database.open(dburl, 2);
         UserStorage userStore
-            = new UserStorage(connection);
+            = new UserStorage(database);
         ChannelStorage channelStore
-            = new ChannelStorage(connection);
+            = new ChannelStorage(database);
         AccountStorage accountStore
-            = new AccountStorage(connection,userStore,channelStore);
+            = new AccountStorage(database,userStore,channelStore);
         SessionStorage sessionStore
-            = new SessionStorage(connection,accountStore);
-        connection.setAutoCommit(false);
-        InChat inchat = new InChat(userStore,channelStore,accountStore,sessionStore,connection);
+            = new SessionStorage(database,accountStore);
+        InChat inchat = new InChat(userStore,channelStore,accountStore,sessionStore,database);
         Stored<Session> aliceSession = inchat.register("Alice","badpass1word").get();
         inchat.register("Bob","worse123").get();
         Stored<Session> bobSession = inchat.login("Bob","worse123").get();
         Stored<Channel> channel = inchat.createChannel(aliceSession.value.account,"Awesome").get();
         inchat.postMessage(aliceSession.value.account,channel, "Test message.").get();
         inchat.joinChannel(bobSession.value.account,channel.identity).get();
-        connection.close();
+        Stored<Session> restored = inchat.restoreSession(bobSession.identity).get();
+        Reference<Channel,SQLException> joined
+            = Util.lookup(restored.value.account.value.channels,"Awesome").get();
+        assertEquals(channel.identity, joined.identity);
+        assertEquals(3, joined.resolve().value.events.length);
+        database.close();
+    }
+
+    @Test
+    void subscribersGetOnlyNewEvents() throws Maybe.NothingException,SQLException,DeletedException {
+        final Database database = Database.open("jdbc:sqlite:" + directory.resolve("test.db"), 2);
+        UserStorage userStore = new UserStorage(database);
+        ChannelStorage channelStore = new ChannelStorage(database);
+        AccountStorage accountStore = new AccountStorage(database,userStore,channelStore);
+        SessionStorage sessionStore = new SessionStorage(database,accountStore);
+        InChat inchat = new InChat(userStore,channelStore,accountStore,sessionStore,database);
+        Stored<Session> alice = inchat.register("Alice","badpass1word").get();
+        Stored<Channel> channel = inchat.createChannel(alice.value.account,"Deltas").get();
+        final long seen = channelStore.get(channel.identity).value.sequence;
+        channel = inchat.postMessage(alice.value.account,channel, "First").get();
+        channel = inchat.postMessage(alice.value.account,channel, "Second").get();
+
+        final List<Stored<Channel.Event>> delta = inchat.getChannelDelta(channel, seen).get();
+        assertEquals(2, delta.length);
+        assertEquals("Second", delta.head().get().value.message);
+
+        // Edits and deletions are logged as events referring to their target.
+        final Stored<Channel.Event> first = delta.last.get();
+        channel = inchat.editMessage(channel, first, "Edited", alice.value.account);
+        final Stored<Channel.Event> edit = inchat.getChannelDelta(channel, seen + 2).get().head().get();
+        assertEquals(Channel.Event.Type.edit, edit.value.type);
+        assertEquals(first.identity, edit.value.target);
+        assertEquals("Edited", channel.value.events.tail().get().head().get().value.message);
+        assertEquals("Edited", channelStore.get(channel.identity).value.events.tail().get().head().get().value.message);
+
+        channel = inchat.deleteEvent(channel, delta.head().get(), alice.value.account);
+        assertEquals(1, inchat.getChannelDelta(channel, seen + 3).get().length);
+        assertEquals("Edited", channel.value.events.head().get().value.message);
+        assertEquals("Edited", channelStore.get(channel.identity).value.events.head().get().value.message);
+        database.close();
+    }
+
+    @Test
+    void editsOutsideTheWindowReloadTheChannel() throws Maybe.NothingException,SQLException,DeletedException {
+        final Database database = Database.open("jdbc:sqlite:" + directory.resolve("test.db"), 2);
+        UserStorage userStore = new UserStorage(database);
+        ChannelStorage channelStore = new ChannelStorage(database, 2);
+        AccountStorage accountStore = new AccountStorage(database,userStore,channelStore);
+        SessionStorage sessionStore = new SessionStorage(database,accountStore);
+        InChat inchat = new InChat(userStore,channelStore,accountStore,sessionStore,database);
+        Stored<Session> alice = inchat.register("Alice","badpass1word").get();
+        Stored<Channel> channel = inchat.createChannel(alice.value.account,"Window").get();
+        channel = inchat.postMessage(alice.value.account,channel, "First").get();
+        final Stored<Channel.Event> first = channel.value.events.head().get();
+        channel = inchat.postMessage(alice.value.account,channel, "Second").get();
+        channel = inchat.postMessage(alice.value.account,channel, "Third").get();
+        final long seen = channel.value.sequence;
+
+        // The client may still show the first message, which only
+        // a full reload brings up to date.
+        channel = inchat.editMessage(channel, first, "Edited", alice.value.account);
+        assertEquals(seen + 1, channel.value.sequence);
+        assertTrue(inchat.getChannelDelta(channel, seen).isNothing());
+        database.close();
     }
 }
@@ -0,0 +1,76 @@
+package inf226.inchat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+import inf226.storage.Stored;
+import inf226.util.Maybe;
+import inf226.util.immutable.List;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+public class PayloadCacheTest {
+    @Test
+    void subscribersShareOneRender() throws Exception {
+        final AtomicInteger renders = new AtomicInteger(0);
+        final CountDownLatch start = new CountDownLatch(1);
+        final PayloadCache payloads = new PayloadCache((channel, sequence) -> {
+            renders.incrementAndGet();
+            return (channel.version + " " + sequence.defaultValue(-1L)).getBytes(StandardCharsets.UTF_8);
+        }, 1 << 20);
+        final Stored<Channel> channel
+            = new Stored<Channel>(new Channel("Shared", List.empty(), new HashMap<String,String>()));
+
+        final PayloadCache.Payload[] seen = new PayloadCache.Payload[8];
+        final Thread[] subscribers = new Thread[seen.length];
+        for (int i = 0; i < seen.length; ++i) {
+            final int index = i;
+            subscribers[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                seen[index] = payloads.get(channel, Maybe.just(3L));
+            });
+            subscribers[i].start();
+        }
+        start.countDown();
+        for (Thread subscriber : subscribers)
+            subscriber.join();
+        for (PayloadCache.Payload payload : seen)
+            assertSame(seen[0], payload);
+        assertEquals(1, renders.get());
+
+        // Another starting point is another answer.
+        assertEquals(channel.version + " -1", payloads.get(channel, Maybe.nothing()).text());
+        assertEquals(2, renders.get());
+    }
+
+    @Test
+    void largePayloadsAreCompressed() throws Exception {
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; ++i)
+            text.append("<div class=\"entry\">Hello</div>\n");
+        final PayloadCache.Payload payload = new PayloadCache.Payload(text.toString());
+        assertTrue(payload.compressible());
+        assertTrue(payload.compressedSize() < payload.size());
+
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        payload.writeCompressedTo(compressed);
+        try (GZIPInputStream gzip
+                 = new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))) {
+            assertEquals(text.toString(), new String(gzip.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        assertFalse(new PayloadCache.Payload("small").compressible());
+    }
+}
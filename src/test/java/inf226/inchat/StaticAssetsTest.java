@@ -0,0 +1,69 @@
+package inf226.inchat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+public class StaticAssetsTest {
+    /* The assets of the test, deleted afterwards. */
+    @TempDir
+    Path directory;
+
+    @Test
+    void assetsAreServedFromMemory() throws Exception {
+        final Path file = directory.resolve("style.css");
+        final StringBuilder css = new StringBuilder();
+        for (int i = 0; i < 50; ++i)
+            css.append("p.class").append(i).append(" { color: black; }\n");
+        Files.write(file, css.toString().getBytes(StandardCharsets.UTF_8));
+
+        final StaticAssets assets = new StaticAssets(directory);
+        assets.add("style.css", "text/css;charset=utf-8", "max-age=300");
+        assets.add("missing.css", "text/css;charset=utf-8", "max-age=300");
+        assertTrue(assets.get("missing.css").isNothing());
+
+        final StaticAssets.Asset asset = assets.get("style.css").get();
+        assertEquals(css.toString(), text(asset.plain()));
+        // Every response gets its own view of the contents.
+        assertEquals(asset.plain().remaining(), asset.plain().remaining());
+        final ByteBuffer compressed = asset.compressed().get();
+        final byte[] gzipped = new byte[compressed.remaining()];
+        compressed.get(gzipped);
+        try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+            assertEquals(css.toString(), new String(gzip.readAllBytes(), StandardCharsets.UTF_8));
+        }
+
+        // Only the encoding served to the client matches.
+        assertTrue(asset.matches(asset.etag, false));
+        assertFalse(asset.matches(asset.etag, true));
+        assertTrue(asset.matches("\"other\", " + asset.compressedEtag, true));
+        assertFalse(asset.matches(asset.compressedEtag, false));
+        assertFalse(asset.matches("\"other\"", false));
+        assertEquals(asset.compressedEtag, asset.etag(true));
+
+        Files.write(file, "p { color: red; }".getBytes(StandardCharsets.UTF_8));
+        assets.reload("style.css");
+        final StaticAssets.Asset changed = assets.get("style.css").get();
+        assertNotEquals(asset.etag, changed.etag);
+        assertFalse(changed.matches(asset.etag, false));
+        // Too small to gain from compression, so it is served plain to all.
+        assertTrue(changed.compressed().isNothing());
+        assertTrue(changed.matches(changed.etag, true));
+    }
+
+    private static String text(ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,45 @@
+package inf226.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import inf226.inchat.Channel;
+import inf226.inchat.ChannelStorage;
+import inf226.util.immutable.List;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.HashMap;
+import java.sql.SQLException;
+
+public class CachedStorageTest {
+    @Test
+    void cachedObjectsAreValidatedByVersion(@TempDir Path directory) throws Exception {
+        final String dburl = "jdbc:sqlite:" + directory.resolve("test.db");
+        final Database database = Database.open(dburl, 1);
+        final ChannelStorage channelStore = new ChannelStorage(database);
+        final CachedStorage<Channel,SQLException> cached
+            = new CachedStorage<Channel,SQLException>(channelStore, database, 10, c -> 1);
+
+        final Stored<Channel> channel
+            = channelStore.save(new Channel("Cached", List.empty(), new HashMap<String,String>()));
+        final Stored<Channel> first = cached.get(channel.identity);
+        assertSame(first, cached.get(channel.identity));
+        assertEquals(1, cached.cache.hits());
+
+        // Changes behind the back of the cache are noticed.
+        final Stored<Channel> touched = channelStore.append(channel,
+            Channel.Event.createMessageEvent(channel.identity, Instant.now(), "Alice", "Hello"));
+        final Stored<Channel> fresh = cached.get(channel.identity);
+        assertNotSame(first, fresh);
+        assertEquals(touched.version, fresh.version);
+
+        cached.delete(fresh);
+        assertThrows(DeletedException.class, () -> cached.get(channel.identity));
+        database.close();
+    }
+}
@@ -0,0 +1,27 @@
+package inf226.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class StripedCacheTest {
+    @Test
+    void stripesShareTheCapacity() throws Exception {
+        final StripedCache<Integer,String> cache
+            = new StripedCache<Integer,String>(40, 4, String::length);
+        for (int i = 0; i < 100; ++i)
+            cache.put(i, "value");
+        // Each stripe holds two values of weight five.
+        assertTrue(cache.weight() <= 40);
+        assertEquals("value", cache.get(99).get());
+        assertTrue(cache.get(0).isNothing());
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+
+        cache.remove(99);
+        assertTrue(cache.get(99).isNothing());
+        // Too heavy for a stripe.
+        cache.put(1000, "a value heavier than a stripe");
+        assertTrue(cache.get(1000).isNothing());
+    }
+}
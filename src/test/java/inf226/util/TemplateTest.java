@@ -0,0 +1,57 @@
+package inf226.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+import org.owasp.encoder.Encode;
+
+public class TemplateTest {
+    @Test
+    void textIsEscapedAsForHtml() {
+        final String[] inputs = {
+            "plain", "<script>alert('x')</script>", "a & b \"quoted\"",
+            "æøå – ✓ 😀", "tab\tnew\nline\r", "bell\u0007 del\u007f c1\u0085\u0090",
+            "lone \ud83d surrogate", "\udc00 reversed \ud83d", "non￾ chars￿ ﷐"
+        };
+        for (String input : inputs) {
+            try (HtmlBuffer out = HtmlBuffer.acquire()) {
+                out.text(input);
+                assertEquals(Encode.forHtml(input), out.toString(), input);
+            }
+        }
+    }
+
+    @Test
+    void templatesFillTheirHoles() {
+        final Template template = Template.compile(
+            "<a href=\"/channel/{{0|uri}}\" id=\"{{1|raw}}\">{{0}}</a>{{2}}");
+        try (HtmlBuffer out = HtmlBuffer.acquire()) {
+            template.render(out, "a b&c", 42, "<b>");
+            assertEquals("<a href=\"/channel/a%20b%26c\" id=\"42\">a b&amp;c</a>&lt;b&gt;",
+                         out.toString());
+        }
+        assertThrows(IllegalArgumentException.class, () -> Template.compile("{{0"));
+        assertThrows(IllegalArgumentException.class, () -> Template.compile("{{x}}"));
+        assertThrows(IllegalArgumentException.class, () -> Template.compile("{{0|bold}}"));
+    }
+
+    @Test
+    void buffersAreReused() {
+        final HtmlBuffer first;
+        try (HtmlBuffer out = HtmlBuffer.acquire()) {
+            first = out;
+            out.text("leftover");
+            // A nested render gets a buffer of its own.
+            try (HtmlBuffer nested = HtmlBuffer.acquire()) {
+                assertNotSame(out, nested);
+            }
+        }
+        try (HtmlBuffer out = HtmlBuffer.acquire()) {
+            assertSame(first, out);
+            assertEquals(0, out.size());
+        }
+    }
+}